@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Same requests as HttpRouterServerHandlerBenchmark with a zero byte cache budget,
+ * so every request reads, encodes (and compresses) the file again.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar CacheMissBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-DcacheMaxBytes=0", "-DfileIoThreads=0", "-DaccessLog=off"})
+public class CacheMissBenchmark {
+
+    private HandlerChannel channel;
+
+    private final ByteBuf smallHtml = HandlerChannel.request("/public/index.html");
+    private final ByteBuf largePng = HandlerChannel.request("/public/pngfile.png");
+    private final ByteBuf usAsciiHtml = HandlerChannel.request("/public/test.html", "Accept-Charset: US-ASCII");
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        channel = new HandlerChannel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close();
+    }
+
+    @Benchmark
+    public long smallHtmlMiss() {
+        return channel.exchange(smallHtml);
+    }
+
+    @Benchmark
+    public long largePngMiss() {
+        return channel.exchange(largePng);
+    }
+
+    @Benchmark
+    public long usAsciiHtmlMiss() {
+        return channel.exchange(usAsciiHtml);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * HttpRouterServerHandler in an EmbeddedChannel with the HTTP/1.1 handlers of
+ * HttpRouterServerInitializer that shape the response: raw request bytes in, encoded response
+ * buffers out. Left out are TimeoutHandler and FlushConsolidationHandler, which only decide when
+ * the channel is closed or flushed, and AccessLogHandler; the benchmarks fork with -DaccessLog=off
+ * so the handler does not log either.
+ *
+ * The server classes live in the default package and can not be imported from here,
+ * so their handlers are created by reflection once, the request path itself is plain Netty.
+ * Paths are relative to the working directory, run the benchmarks from the project root.
+ * Benchmarks fork with -DfileIoThreads=0: EmbeddedChannel has no real event loop for the I/O executor
+ * to hand responses back to, so misses are read in place and the read cost is measured directly.
+ */
+final class HandlerChannel {
+
+    private final Object handler;
+    private final EmbeddedChannel channel;
+
+    HandlerChannel() throws Exception {
+        Router<String> router = new Router<String>()
+            .GET("public/:id", "public")
+            .GET("/", "index")
+            .GET("public/", "index")
+            .GET("metrics", "metrics")
+            .notFound("404 Not Found");
+        handler = Class.forName("HttpRouterServerHandler").getConstructor(Router.class).newInstance(router);
+        ChannelHandler preparedResponseEncoder = (ChannelHandler) Class.forName("PreparedResponseEncoder").getConstructor().newInstance();
+        ChannelHandler http1ServerCodec = (ChannelHandler) Class.forName("Http1ServerCodec").getConstructor().newInstance();
+        channel = new EmbeddedChannel(
+                preparedResponseEncoder,
+                http1ServerCodec,
+                new ChunkedWriteHandler(),
+                (ChannelHandler) handler);
+    }
+
+    static ByteBuf request(String uri, String... headers) {
+        StringBuilder sb = new StringBuilder("GET ").append(uri).append(" HTTP/1.1\r\nHost: localhost\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        sb.append("\r\n");
+        return Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(sb, CharsetUtil.US_ASCII));
+    }
+
+    /**
+     * Writes the request and returns the number of response bytes written back.
+     */
+    long exchange(ByteBuf request) {
+        channel.writeInbound(request.duplicate());
+        long bytes = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf) {
+                bytes += ((ByteBuf) msg).readableBytes();
+            } else if (msg instanceof FileRegion) {
+                bytes += ((FileRegion) msg).count();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return bytes;
+    }
+
+    /**
+     * Response head of the request as text, for picking up validators in setup.
+     */
+    String exchangeForHead(ByteBuf request) {
+        channel.writeInbound(request.duplicate());
+        StringBuilder sb = new StringBuilder();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf && sb.indexOf("\r\n\r\n") < 0) {
+                sb.append(((ByteBuf) msg).toString(CharsetUtil.ISO_8859_1));
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        int end = sb.indexOf("\r\n\r\n");
+        return end < 0 ? sb.toString() : sb.substring(0, end);
+    }
+
+    /**
+     * Fails the setup if the request is not answered with the status the benchmark is named after.
+     */
+    void expectStatus(ByteBuf request, int status) {
+        String head = exchangeForHead(request);
+        if (!head.startsWith("HTTP/1.1 " + status + ' ')) {
+            throw new IllegalStateException("expected " + status + ", got:\n" + head);
+        }
+    }
+
+    static String header(String head, String name) {
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                return line.substring(colon + 1).trim();
+            }
+        }
+        throw new IllegalStateException(name + " not found in response:\n" + head);
+    }
+
+    void close() throws Exception {
+        channel.finishAndReleaseAll();
+        handler.getClass().getMethod("close").invoke(handler);
+    }
+}
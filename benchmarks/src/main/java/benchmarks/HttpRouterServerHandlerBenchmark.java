@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package benchmarks;
+
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request path of HttpRouterServerHandler with warm file cache: 200 for small html and large png,
+ * Accept-Charset: US-ASCII for an ASCII file (200) and a non-ASCII one (406), 304 by each validator and 404.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar HttpRouterServerHandlerBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-DfileIoThreads=0", "-DaccessLog=off"})
+public class HttpRouterServerHandlerBenchmark {
+
+    private HandlerChannel channel;
+
+    private final ByteBuf smallHtml = HandlerChannel.request("/public/index.html");
+    private final ByteBuf largePng = HandlerChannel.request("/public/pngfile.png");
+    private final ByteBuf usAsciiHtml = HandlerChannel.request("/public/test.html", "Accept-Charset: US-ASCII");
+    private final ByteBuf notAcceptable = HandlerChannel.request("/public/index.html", "Accept-Charset: US-ASCII");
+    private final ByteBuf notFound = HandlerChannel.request("/public/missing.html");
+    private ByteBuf ifNoneMatch;
+    private ByteBuf ifModifiedSince;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        channel = new HandlerChannel();
+        String head = channel.exchangeForHead(smallHtml);
+        ifNoneMatch = HandlerChannel.request("/public/index.html",
+                "If-None-Match: " + HandlerChannel.header(head, "ETag"));
+        ifModifiedSince = HandlerChannel.request("/public/index.html",
+                "If-Modified-Since: " + HandlerChannel.header(head, "Last-Modified"));
+        channel.expectStatus(ifNoneMatch, 304);
+        channel.expectStatus(ifModifiedSince, 304);
+        channel.expectStatus(notFound, 404);
+        // load every variant into the cache before measuring
+        channel.expectStatus(largePng, 200);
+        channel.expectStatus(usAsciiHtml, 200);
+        channel.expectStatus(notAcceptable, 406);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        channel.close();
+    }
+
+    @Benchmark
+    public long smallHtmlHit() {
+        return channel.exchange(smallHtml);
+    }
+
+    @Benchmark
+    public long largePngHit() {
+        return channel.exchange(largePng);
+    }
+
+    @Benchmark
+    public long usAsciiHtmlHit() {
+        return channel.exchange(usAsciiHtml);
+    }
+
+    @Benchmark
+    public long notAcceptableUsAscii() {
+        return channel.exchange(notAcceptable);
+    }
+
+    @Benchmark
+    public long notModifiedIfNoneMatch() {
+        return channel.exchange(ifNoneMatch);
+    }
+
+    @Benchmark
+    public long notModifiedIfModifiedSince() {
+        return channel.exchange(ifModifiedSince);
+    }
+
+    @Benchmark
+    public long notFound() {
+        return channel.exchange(notFound);
+    }
+}
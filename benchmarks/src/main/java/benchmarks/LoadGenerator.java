@@ -0,0 +1,439 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package benchmarks;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTP/1.1 load generator for HttpRouterServer on localhost.
+ *
+ * Closed loop (-Drate=0): every connection keeps -Dpipeline requests in flight and sends the next one
+ * when a response completes. Open loop (-Drate=N): N requests per second in total are scheduled at fixed
+ * intervals per connection, a request that can not be sent on time keeps its scheduled start, so
+ * response time includes the queueing a stalled server causes (coordinated omission correction).
+ * Service time is always measured from the actual send.
+ *
+ * -DkeepAlive=false sends "Connection: close" and one request per connection, the connect is
+ * part of the measured time.
+ *
+ *   java -cp benchmarks/target/benchmarks.jar -DinProcess=true -Dconnections=64 -Dpipeline=4 benchmarks.LoadGenerator
+ */
+public final class LoadGenerator {
+
+    static final String HOST = System.getProperty("host", "127.0.0.1");
+    static final int PORT = Integer.parseInt(System.getProperty("port", "8000"));
+    static final boolean IN_PROCESS = Boolean.parseBoolean(System.getProperty("inProcess", "false")); // start HttpRouterServer in this JVM
+    static final int CONNECTIONS = Integer.parseInt(System.getProperty("connections", "16"));
+    static final int PIPELINE = Integer.parseInt(System.getProperty("pipeline", "1")); // requests in flight per connection
+    static final long RATE = Long.parseLong(System.getProperty("rate", "0")); // requests per second in total, 0 - closed loop
+    static final int DURATION_SECONDS = Integer.parseInt(System.getProperty("duration", "30"));
+    static final int WARMUP_SECONDS = Integer.parseInt(System.getProperty("warmup", "5")); // reported, not counted
+    static final boolean KEEP_ALIVE = Boolean.parseBoolean(System.getProperty("keepAlive", "true"));
+    static final String MIX = System.getProperty("mix", ""); // index.html:4,app.js:1,... default every file in public/ once
+    static final int THREADS = Integer.parseInt(System.getProperty("threads",
+            String.valueOf(Math.min(CONNECTIONS, Runtime.getRuntime().availableProcessors()))));
+    static final String PUBLIC_DIR = "public/";
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final Recorder responseTime = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final Recorder serviceTime = new Recorder(HIGHEST_TRACKABLE_NANOS, 3);
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder connects = new LongAdder();
+    private final AtomicLongArray statuses = new AtomicLongArray(600);
+
+    private final FullHttpRequest[] requests;
+    private final int[] cumulativeWeights;
+    private final Bootstrap bootstrap = new Bootstrap();
+    private volatile boolean running = true;
+
+    private LoadGenerator(List<String> paths, List<Integer> weights) {
+        requests = new FullHttpRequest[paths.size()];
+        cumulativeWeights = new int[paths.size()];
+        int total = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            // requests are shared by all connections, the encoder only reads them and the empty content is not released
+            FullHttpRequest req = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET,
+                    "/" + PUBLIC_DIR + paths.get(i), Unpooled.EMPTY_BUFFER);
+            req.headers().set(HttpHeaderNames.HOST, HOST + ':' + PORT);
+            req.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
+            if (!KEEP_ALIVE) {
+                req.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+            }
+            requests[i] = req;
+            total += weights.get(i);
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> paths = new ArrayList<String>();
+        List<Integer> weights = new ArrayList<Integer>();
+        parseMix(paths, weights);
+        System.out.println("Request mix: " + paths + " weights " + weights);
+
+        if (IN_PROCESS) {
+            startServer();
+        }
+        new LoadGenerator(paths, weights).run();
+        System.exit(0); // in-process server threads are not daemons
+    }
+
+    private static void parseMix(List<String> paths, List<Integer> weights) {
+        if (MIX.isEmpty()) {
+            String[] files = new File(PUBLIC_DIR).list();
+            if (files == null) {
+                throw new IllegalStateException(PUBLIC_DIR + " not found, run from the project root or set -Dmix");
+            }
+            Arrays.sort(files);
+            for (String file : files) {
+                paths.add(file);
+                weights.add(1);
+            }
+            return;
+        }
+        for (String entry : MIX.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            paths.add(colon < 0 ? entry.trim() : entry.substring(0, colon).trim());
+            weights.add(colon < 0 ? 1 : Integer.parseInt(entry.substring(colon + 1).trim()));
+        }
+    }
+
+    /**
+     * HttpRouterServer lives in the default package, its main is started by reflection
+     * and blocks until the server channel closes, so it gets its own daemon thread.
+     */
+    private static void startServer() throws InterruptedException {
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Class.forName("HttpRouterServer").getMethod("main", String[].class).invoke(null, (Object) new String[0]);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, "http-router-server");
+        server.setDaemon(true);
+        server.start();
+        for (int i = 0; i < 100; i++) {
+            try {
+                new Socket(HOST, PORT).close();
+                return;
+            } catch (java.io.IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("server did not start on " + HOST + ':' + PORT);
+    }
+
+    private void run() throws InterruptedException {
+        EventLoopGroup group = new NioEventLoopGroup(THREADS);
+        bootstrap.group(group)
+                 .channel(NioSocketChannel.class)
+                 .option(ChannelOption.TCP_NODELAY, Boolean.TRUE)
+                 .remoteAddress(new InetSocketAddress(HOST, PORT));
+
+        System.out.println("Target http://" + HOST + ':' + PORT + "/, " + CONNECTIONS + " connections, pipeline " + PIPELINE
+                + ", " + (RATE > 0 ? RATE + " req/s open loop" : "closed loop") + ", " + (KEEP_ALIVE ? "keep-alive" : "close")
+                + ", " + WARMUP_SECONDS + "s warmup + " + DURATION_SECONDS + "s");
+
+        long intervalNanos = RATE > 0 ? TimeUnit.SECONDS.toNanos(1) * CONNECTIONS / RATE : 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            // spread the first scheduled sends over one interval
+            new Slot(intervalNanos, start + (intervalNanos * i / CONNECTIONS)).connect();
+        }
+
+        Histogram totalResponse = null;
+        Histogram totalService = null;
+        Histogram intervalResponse = null;
+        Histogram intervalService = null;
+        long measuredCompleted = 0;
+        long measuredBytes = 0;
+        long lastCompleted = 0;
+        long measureStart = 0;
+        for (int second = 1; second <= WARMUP_SECONDS + DURATION_SECONDS; second++) {
+            Thread.sleep(Math.max(0, start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime()) / 1000000);
+            intervalResponse = responseTime.getIntervalHistogram(intervalResponse);
+            intervalService = serviceTime.getIntervalHistogram(intervalService);
+            long done = completed.sum();
+            System.out.printf("%4ds %s %8d req/s  p50 %8.3f ms  p99 %8.3f ms  max %8.3f ms  errors %d%n",
+                    second, second <= WARMUP_SECONDS ? "warmup" : "      ", done - lastCompleted,
+                    millis(intervalResponse.getValueAtPercentile(50)), millis(intervalResponse.getValueAtPercentile(99)),
+                    millis(intervalResponse.getMaxValue()), errors.sum());
+            if (second == WARMUP_SECONDS) {
+                measuredCompleted = done;
+                measuredBytes = bytes.sum();
+                measureStart = System.nanoTime();
+                for (int i = 0; i < statuses.length(); i++) {
+                    statuses.set(i, 0);
+                }
+                errors.reset();
+                connects.reset();
+            } else if (second > WARMUP_SECONDS) {
+                if (totalResponse == null) {
+                    totalResponse = intervalResponse.copy();
+                    totalService = intervalService.copy();
+                } else {
+                    totalResponse.add(intervalResponse);
+                    totalService.add(intervalService);
+                }
+            }
+            lastCompleted = done;
+        }
+        running = false;
+        double seconds = (System.nanoTime() - (WARMUP_SECONDS > 0 ? measureStart : start)) / 1e9;
+        long requestCount = completed.sum() - measuredCompleted;
+        long byteCount = bytes.sum() - measuredBytes;
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+
+        System.out.println();
+        System.out.printf("Requests: %d in %.1fs, %.0f req/s, %.2f MB/s%n",
+                requestCount, seconds, requestCount / seconds, byteCount / seconds / (1024 * 1024));
+        StringBuilder sb = new StringBuilder("Status:");
+        for (int i = 0; i < statuses.length(); i++) {
+            if (statuses.get(i) > 0) {
+                sb.append(' ').append(i).append('=').append(statuses.get(i));
+            }
+        }
+        System.out.println(sb);
+        System.out.println("Errors: " + errors.sum() + ", connects: " + connects.sum());
+        if (totalResponse == null) {
+            return;
+        }
+        System.out.println("Latency ms          p50       p90       p99     p99.9    p99.99       max");
+        if (RATE > 0) {
+            printPercentiles("response time", totalResponse);
+        }
+        printPercentiles("service time ", totalService);
+    }
+
+    private static void printPercentiles(String name, Histogram h) {
+        System.out.printf("  %s %9.3f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name,
+                millis(h.getValueAtPercentile(50)), millis(h.getValueAtPercentile(90)), millis(h.getValueAtPercentile(99)),
+                millis(h.getValueAtPercentile(99.9)), millis(h.getValueAtPercentile(99.99)), millis(h.getMaxValue()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private FullHttpRequest nextRequest() {
+        if (requests.length == 1) {
+            return requests[0];
+        }
+        int r = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; ; i++) {
+            if (r < cumulativeWeights[i]) {
+                return requests[i];
+            }
+        }
+    }
+
+    private void record(long intended, long sent, long now) {
+        responseTime.recordValue(Math.min(now - intended, HIGHEST_TRACKABLE_NANOS));
+        serviceTime.recordValue(Math.min(now - sent, HIGHEST_TRACKABLE_NANOS));
+    }
+
+    /**
+     * One logical connection. Its send schedule survives reconnects, the server closes
+     * the channel after every response in close mode.
+     */
+    private final class Slot {
+        final long intervalNanos; // 0 - closed loop
+        long nextIntended;        // accessed from the event loop of the current channel only
+        long connectStart;
+
+        Slot(long intervalNanos, long firstIntended) {
+            this.intervalNanos = intervalNanos;
+            this.nextIntended = firstIntended;
+        }
+
+        void connect() {
+            if (!running) {
+                return;
+            }
+            connectStart = System.nanoTime();
+            connects.increment();
+            bootstrap.clone().handler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new HttpClientCodec(), new ConnectionHandler(Slot.this));
+                }
+            }).connect().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) {
+                    if (!future.isSuccess()) {
+                        errors.increment();
+                        future.channel().eventLoop().schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                connect();
+                            }
+                        }, 100, TimeUnit.MILLISECONDS);
+                    }
+                }
+            });
+        }
+    }
+
+    private final class ConnectionHandler extends SimpleChannelInboundHandler<HttpObject> {
+        private final Slot slot;
+        private final ArrayDeque<long[]> inFlight = new ArrayDeque<long[]>(); // {intended, sent} in request order
+        private boolean sendScheduled;
+        private int sentOnChannel;
+        private int status;
+        private long responseBytes;
+
+        ConnectionHandler(Slot slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            trySend(ctx);
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            if (msg instanceof HttpResponse) {
+                status = ((HttpResponse) msg).status().code();
+            }
+            if (msg instanceof HttpContent) {
+                responseBytes += ((HttpContent) msg).content().readableBytes();
+            }
+            if (msg instanceof LastHttpContent) {
+                long[] times = inFlight.poll();
+                if (times == null) {
+                    errors.increment(); // response without request
+                    return;
+                }
+                record(times[0], times[1], System.nanoTime());
+                completed.increment();
+                bytes.add(responseBytes);
+                if (status > 0 && status < statuses.length()) {
+                    statuses.incrementAndGet(status);
+                }
+                status = 0;
+                responseBytes = 0;
+                trySend(ctx);
+            }
+        }
+
+        private void trySend(final ChannelHandlerContext ctx) {
+            if (!running) {
+                if (inFlight.isEmpty()) {
+                    ctx.close();
+                }
+                return;
+            }
+            boolean written = false;
+            while (inFlight.size() < PIPELINE && (KEEP_ALIVE || sentOnChannel == 0)) {
+                long now = System.nanoTime();
+                long intended;
+                if (slot.intervalNanos == 0) {
+                    intended = KEEP_ALIVE ? now : slot.connectStart;
+                } else {
+                    if (slot.nextIntended > now) {
+                        scheduleSend(ctx, slot.nextIntended - now);
+                        break;
+                    }
+                    intended = slot.nextIntended;
+                    slot.nextIntended += slot.intervalNanos;
+                }
+                ctx.write(nextRequest());
+                inFlight.add(new long[] {intended, now});
+                sentOnChannel++;
+                written = true;
+            }
+            if (written) {
+                ctx.flush();
+            }
+        }
+
+        private void scheduleSend(final ChannelHandlerContext ctx, long delayNanos) {
+            if (sendScheduled) {
+                return;
+            }
+            sendScheduled = true;
+            ctx.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sendScheduled = false;
+                    if (ctx.channel().isActive()) {
+                        trySend(ctx);
+                    }
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            // requests the server did not answer before closing
+            if (running) {
+                errors.add(inFlight.size());
+            }
+            inFlight.clear();
+            slot.connect();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            errors.increment();
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost the per-client rate limiter adds to every request: one client, many clients
+ * spread over the bucket table, and four threads taking from the same bucket (CAS contention).
+ * The budget is set high enough that nothing is rejected, the allowed path is what every request pays.
+ *
+ *   java -jar benchmarks/target/benchmarks.jar RateLimiterBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-DaccessLog=off")
+public class RateLimiterBenchmark {
+
+    private static final int CLIENTS = 4096;
+    private static final MethodHandle ACQUIRE_REQUEST;
+    private static final MethodHandle ACQUIRE_MISS;
+
+    static {
+        try {
+            // RateLimiter is in the default package, see HandlerChannel
+            Class<?> limiterClass = Class.forName("RateLimiter");
+            MethodType exact = MethodType.methodType(long.class, InetAddress.class);
+            MethodType erased = MethodType.methodType(long.class, Object.class, InetAddress.class);
+            ACQUIRE_REQUEST = MethodHandles.publicLookup().findVirtual(limiterClass, "acquireRequest", exact).asType(erased);
+            ACQUIRE_MISS = MethodHandles.publicLookup().findVirtual(limiterClass, "acquireMiss", exact).asType(erased);
+        } catch (Exception e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static Object newLimiter() throws Exception {
+        return Class.forName("RateLimiter")
+                .getConstructor(double.class, int.class, double.class, int.class, int.class)
+                .newInstance(1e12, 1000000, 1e12, 1000000, 65536);
+    }
+
+    @State(Scope.Thread)
+    public static class PerThread {
+        Object limiter;
+        InetAddress client;
+        InetAddress[] clients = new InetAddress[CLIENTS];
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            limiter = newLimiter();
+            client = InetAddress.getByAddress(new byte[] {10, 0, 0, 1});
+            for (int i = 0; i < CLIENTS; i++) {
+                clients[i] = InetAddress.getByAddress(new byte[] {10, 1, (byte) (i >> 8), (byte) i});
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        Object limiter;
+        InetAddress client;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            limiter = newLimiter();
+            client = InetAddress.getByAddress(new byte[] {10, 0, 0, 1});
+        }
+    }
+
+    @Benchmark
+    public long oneClient(PerThread state) throws Throwable {
+        return (long) ACQUIRE_REQUEST.invokeExact(state.limiter, state.client);
+    }
+
+    @Benchmark
+    public long oneClientRequestAndMiss(PerThread state) throws Throwable {
+        return (long) ACQUIRE_REQUEST.invokeExact(state.limiter, state.client)
+                + (long) ACQUIRE_MISS.invokeExact(state.limiter, state.client);
+    }
+
+    @Benchmark
+    public long manyClients(PerThread state) throws Throwable {
+        InetAddress client = state.clients[state.next++ & (CLIENTS - 1)];
+        return (long) ACQUIRE_REQUEST.invokeExact(state.limiter, client);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public long oneClientFourThreads(Shared state) throws Throwable {
+        return (long) ACQUIRE_REQUEST.invokeExact(state.limiter, state.client);
+    }
+}
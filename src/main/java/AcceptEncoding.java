@@ -0,0 +1,121 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Picks the content coding for a response from the Accept-Encoding request header.
+ * Gzip is preferred over deflate when both have the same q-value.
+ */
+final class AcceptEncoding {
+
+    private AcceptEncoding() {
+    }
+
+    /**
+     * Returns CachedFile.GZIP, DEFLATE or IDENTITY.
+     */
+    static int choose(String header) {
+        if (header == null || header.isEmpty()) {
+            return CachedFile.IDENTITY;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float any = -1;
+        int len = header.length();
+        int i = 0;
+        while (i < len) {
+            int end = header.indexOf(',', i);
+            if (end < 0) {
+                end = len;
+            }
+            int semicolon = header.indexOf(';', i);
+            if (semicolon > end) {
+                semicolon = -1;
+            }
+            int nameStart = skipSpaces(header, i, end);
+            int nameEnd = trimEnd(header, nameStart, semicolon < 0 ? end : semicolon);
+            float q = semicolon < 0 ? 1f : qValue(header, semicolon + 1, end);
+
+            if (matches(header, nameStart, nameEnd, "gzip") || matches(header, nameStart, nameEnd, "x-gzip")) {
+                gzip = q;
+            } else if (matches(header, nameStart, nameEnd, "deflate")) {
+                deflate = q;
+            } else if (matches(header, nameStart, nameEnd, "*")) {
+                any = q;
+            }
+            i = end + 1;
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return CachedFile.GZIP;
+        }
+        if (deflate > 0) {
+            return CachedFile.DEFLATE;
+        }
+        return CachedFile.IDENTITY;
+    }
+
+    /**
+     * Parses "q=0.5" style parameter, other parameters are ignored. Malformed value counts as 1.
+     */
+    private static float qValue(String header, int start, int end) {
+        int i = skipSpaces(header, start, end);
+        if (i + 1 >= end || (header.charAt(i) != 'q' && header.charAt(i) != 'Q') || header.charAt(i + 1) != '=') {
+            return 1f;
+        }
+        i += 2;
+        float value = 0;
+        float scale = 0;
+        for (; i < end; i++) {
+            char c = header.charAt(i);
+            if (c == '.') {
+                scale = 1;
+            } else if (c >= '0' && c <= '9') {
+                if (scale == 0) {
+                    value = value * 10 + (c - '0');
+                } else {
+                    scale /= 10;
+                    value += (c - '0') * scale;
+                }
+            } else {
+                break;
+            }
+        }
+        return Math.min(value, 1f);
+    }
+
+    private static boolean matches(String header, int start, int end, String token) {
+        return end - start == token.length() && header.regionMatches(true, start, token, 0, token.length());
+    }
+
+    private static int skipSpaces(String s, int start, int end) {
+        while (start < end && s.charAt(start) == ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(String s, int start, int end) {
+        while (end > start && s.charAt(end - 1) == ' ') {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.CharsetUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log written off the event loops.
+ *
+ * Event loops put records into a preallocated ring: a slot is claimed with one CAS on the claim
+ * sequence, filled with references that already exist (the request, its remote address) and
+ * published with a volatile write. Nothing is formatted and nothing blocks on the event loop;
+ * when the ring is full the record is dropped and counted (access_log_dropped_total).
+ *
+ * One daemon thread drains the ring in order, formats the records (combined or JSON lines)
+ * and writes them in batches, rolling the file by size: access.log -> access.log.1 -> ... -> access.log.N.
+ */
+public class AccessLog {
+
+    public static final String HIT = "HIT";       // served from the memory cache
+    public static final String MISS = "MISS";     // read from disk, then cached
+    public static final String BYPASS = "BYPASS"; // large file, sent from disk without caching
+
+    private static final int BATCH_CHARS = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = 10 * 1000 * 1000L;
+    private static final long STOP_WAIT_MS = 2000;
+
+    private final String path;
+    private final boolean json;
+    private final long maxBytes;
+    private final int files;
+    private final ServerMetrics metrics;
+    private final Record[] ring;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(); // next sequence to claim
+    private volatile long written;                       // next sequence to drain, only the writer advances it
+    private volatile boolean stopping;
+    private final Thread writer;
+    private final Thread shutdownHook;
+
+    // writer thread only
+    private final StringBuilder batch = new StringBuilder(BATCH_CHARS + 4096);
+    private final SimpleDateFormat combinedTime = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+    private final SimpleDateFormat jsonTime = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+    private final SimpleDateFormat jsonZone = new SimpleDateFormat("XXX", Locale.US);
+    private long formattedSecond = Long.MIN_VALUE;
+    private String formattedTime;
+    private String formattedZone;
+    private FileOutputStream out;
+    private long size;
+
+    /**
+     * @param path      log file, rolled files get a .1 ... .N suffix
+     * @param json      one JSON object per line instead of combined format
+     * @param maxBytes  size at which the file is rolled
+     * @param files     rolled files kept, 0 - the file is truncated instead
+     * @param ringSize  records waiting for the writer, rounded up to a power of two
+     */
+    public AccessLog(String path, boolean json, long maxBytes, int files, int ringSize, ServerMetrics metrics) {
+        this.path = path;
+        this.json = json;
+        this.maxBytes = maxBytes;
+        this.files = files;
+        this.metrics = metrics;
+        int capacity = Integer.highestOneBit(Math.max(ringSize, 2) - 1) << 1;
+        ring = new Record[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Record();
+        }
+        mask = capacity - 1;
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "access-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        }, "access-log-flush");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Records one answered request. Never blocks: drops the record if the writer is behind by a whole ring.
+     */
+    public void log(HttpRequest req, InetAddress remote, String protocol, int status, long bodyBytes,
+                    long latencyNanos, String cache) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - written >= ring.length) {
+                metrics.accessLogDropped();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Record r = ring[(int) sequence & mask];
+        r.timeMillis = System.currentTimeMillis();
+        r.request = req;
+        r.remote = remote;
+        r.protocol = protocol;
+        r.status = status;
+        r.bodyBytes = bodyBytes;
+        r.latencyNanos = latencyNanos;
+        r.cache = cache;
+        r.published = sequence; // volatile write, the fields above are visible to the writer
+    }
+
+    /**
+     * Writes what is in the ring and stops the writer, called at shutdown. Calling it again does nothing.
+     */
+    public void stop() {
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // the JVM is shutting down, the hook is running or about to
+            }
+        }
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(STOP_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        for (;;) {
+            long next = written;
+            Record r = ring[(int) next & mask];
+            if (r.published != next) { // empty, or claimed and not filled yet
+                writeBatch();
+                if (stopping) {
+                    close();
+                    return;
+                }
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                continue;
+            }
+            try {
+                if (json) {
+                    formatJson(r);
+                } else {
+                    formatCombined(r);
+                }
+            } catch (RuntimeException e) { // a bad record must not stop the writer
+                e.printStackTrace();
+            }
+            r.request = null;
+            r.remote = null;
+            written = next + 1; // frees the slot
+            if (batch.length() >= BATCH_CHARS) {
+                writeBatch();
+            }
+        }
+    }
+
+    /**
+     * 127.0.0.1 - - [17/Oct/2026:10:00:00 +0000] "GET /public/index.html HTTP/1.1" 200 1024 "referer" "agent" 125 HIT
+     * with the latency in microseconds and the cache result ("-" for responses not served from a file) at the end.
+     */
+    private void formatCombined(Record r) {
+        StringBuilder sb = batch;
+        sb.append(address(r.remote)).append(" - - [").append(time(r.timeMillis, false)).append("] \"");
+        sb.append(r.request.method().name()).append(' ');
+        escape(sb, r.request.uri(), false);
+        sb.append(' ').append(r.protocol).append("\" ").append(r.status).append(' ');
+        if (r.bodyBytes > 0) {
+            sb.append(r.bodyBytes);
+        } else {
+            sb.append('-');
+        }
+        sb.append(" \"");
+        escape(sb, headerOrDash(r.request, HttpHeaderNames.REFERER), false);
+        sb.append("\" \"");
+        escape(sb, headerOrDash(r.request, HttpHeaderNames.USER_AGENT), false);
+        sb.append("\" ").append(r.latencyNanos / 1000).append(' ').append(r.cache == null ? "-" : r.cache).append('\n');
+    }
+
+    private void formatJson(Record r) {
+        StringBuilder sb = batch;
+        sb.append("{\"time\":\"").append(time(r.timeMillis, true)).append("\",\"remote\":\"").append(address(r.remote));
+        sb.append("\",\"method\":\"").append(r.request.method().name()).append("\",\"uri\":\"");
+        escape(sb, r.request.uri(), true);
+        sb.append("\",\"protocol\":\"").append(r.protocol).append("\",\"status\":").append(r.status);
+        sb.append(",\"bytes\":").append(r.bodyBytes).append(",\"latency_us\":").append(r.latencyNanos / 1000);
+        sb.append(",\"cache\":");
+        if (r.cache == null) {
+            sb.append("null");
+        } else {
+            sb.append('"').append(r.cache).append('"');
+        }
+        jsonHeader(sb, "referer", r.request.headers().get(HttpHeaderNames.REFERER));
+        jsonHeader(sb, "user_agent", r.request.headers().get(HttpHeaderNames.USER_AGENT));
+        sb.append("}\n");
+    }
+
+    private static void jsonHeader(StringBuilder sb, String name, String value) {
+        if (value != null) {
+            sb.append(",\"").append(name).append("\":\"");
+            escape(sb, value, true);
+            sb.append('"');
+        }
+    }
+
+    private static String headerOrDash(HttpRequest req, CharSequence name) {
+        String value = req.headers().get(name);
+        return value == null ? "-" : value;
+    }
+
+    private static String address(InetAddress remote) {
+        return remote == null ? "-" : remote.getHostAddress();
+    }
+
+    /**
+     * Combined: [dd/MMM/yyyy:HH:mm:ss Z], JSON: ISO 8601 with milliseconds. Formatted once per second.
+     */
+    private String time(long millis, boolean iso) {
+        long second = millis / 1000;
+        if (second != formattedSecond) {
+            Date date = new Date(second * 1000);
+            formattedSecond = second;
+            formattedTime = (iso ? jsonTime : combinedTime).format(date);
+            formattedZone = jsonZone.format(date);
+        }
+        if (!iso) {
+            return formattedTime;
+        }
+        int ms = (int) (millis % 1000);
+        return formattedTime + (ms < 10 ? ".00" : ms < 100 ? ".0" : ".") + ms + formattedZone;
+    }
+
+    /**
+     * Quotes and control characters of client supplied values: \" and \xHH in combined format
+     * (as nginx does), JSON string escapes in JSON.
+     */
+    private static void escape(StringBuilder sb, String s, boolean json) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                if (json) {
+                    sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                } else {
+                    sb.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    private void writeBatch() {
+        if (batch.length() == 0) {
+            return;
+        }
+        byte[] bytes = batch.toString().getBytes(CharsetUtil.UTF_8);
+        batch.setLength(0);
+        try {
+            if (out == null) {
+                open();
+            } else if (size + bytes.length > maxBytes) {
+                roll();
+            }
+            out.write(bytes);
+            size += bytes.length;
+        } catch (IOException e) { // the batch is lost, the next one reopens the file
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    private void open() throws IOException {
+        File file = new File(path);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can not create directory " + dir);
+        }
+        out = new FileOutputStream(file, true);
+        size = file.length();
+    }
+
+    private void roll() throws IOException {
+        close();
+        File file = new File(path);
+        if (files <= 0) {
+            file.delete();
+        } else {
+            new File(path + '.' + files).delete();
+            for (int i = files - 1; i >= 1; i--) {
+                File rolled = new File(path + '.' + i);
+                if (rolled.exists()) {
+                    rolled.renameTo(new File(path + '.' + (i + 1)));
+                }
+            }
+            file.renameTo(new File(path + ".1"));
+        }
+        open();
+    }
+
+    private void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * Ring slot, reused for ever. published is the sequence of the record in it, -1 before the first one.
+     */
+    private static final class Record {
+        volatile long published = -1;
+        long timeMillis;
+        HttpRequest request;
+        InetAddress remote;
+        String protocol;
+        int status;
+        long bodyBytes;
+        long latencyNanos;
+        String cache;
+    }
+}
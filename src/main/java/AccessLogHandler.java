@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.util.AttributeKey;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+
+/**
+ * Hands every answered request to the AccessLog: notes the request and the time it was read,
+ * and when its response goes out (HttpResponse or PreparedResponse) logs status, body bytes and latency.
+ * Requests are answered in order, so the oldest request waiting belongs to the response.
+ *
+ * Sits in front of HttpRouterServerHandler, one instance per connection or HTTP/2 stream.
+ * The handler tells how a file was served by setting CACHE_STATUS on the channel before writing.
+ */
+public class AccessLogHandler extends ChannelDuplexHandler {
+
+    public static final AttributeKey<String> CACHE_STATUS = AttributeKey.valueOf("accessLogCacheStatus");
+    private static final String HTTP_2 = "HTTP/2.0";
+
+    private final AccessLog log;
+
+    // the request being answered, pipelined ones behind it wait in queued
+    private HttpRequest request;
+    private long start;
+    private ArrayDeque<Pending> queued;
+
+    public AccessLogHandler(AccessLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Labels the response about to be written on this channel, see AccessLog.HIT, MISS, BYPASS.
+     */
+    public static void cacheStatus(ChannelHandlerContext ctx, String status) {
+        ctx.channel().attr(CACHE_STATUS).set(status);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest) {
+            if (request == null) {
+                request = (HttpRequest) msg;
+                start = System.nanoTime();
+            } else {
+                if (queued == null) {
+                    queued = new ArrayDeque<Pending>(4);
+                }
+                queued.add(new Pending((HttpRequest) msg, System.nanoTime()));
+            }
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (request != null) {
+            if (msg instanceof PreparedResponse) {
+                logged(ctx, 200, ((PreparedResponse) msg).bodyLength);
+            } else if (msg instanceof HttpResponse) {
+                HttpResponse res = (HttpResponse) msg;
+                long bodyBytes = res instanceof FullHttpResponse ? ((FullHttpResponse) res).content().readableBytes()
+                        : HttpUtil.getContentLength(res, 0L);
+                logged(ctx, res.status().code(), bodyBytes);
+            }
+        }
+        ctx.write(msg, promise);
+    }
+
+    private void logged(ChannelHandlerContext ctx, int status, long bodyBytes) {
+        String protocol = ctx.channel() instanceof Http2StreamChannel ? HTTP_2 : request.protocolVersion().text();
+        SocketAddress remote = ctx.channel().remoteAddress();
+        log.log(request, remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null,
+                protocol, status, bodyBytes, System.nanoTime() - start, ctx.channel().attr(CACHE_STATUS).getAndSet(null));
+
+        Pending next = queued == null ? null : queued.poll();
+        if (next == null) {
+            request = null;
+        } else {
+            request = next.request;
+            start = next.start;
+        }
+    }
+
+    private static final class Pending {
+        final HttpRequest request;
+        final long start;
+
+        Pending(HttpRequest request, long start) {
+            this.request = request;
+            this.start = start;
+        }
+    }
+}
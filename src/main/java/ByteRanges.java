@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Parsed "Range: bytes=..." header, resolved against the length of the representation.
+ * Overlapping and adjacent ranges are merged, ranges are served in ascending order.
+ */
+final class ByteRanges {
+
+    static final int MAX_RANGES = 16;
+    static final ByteRanges UNSATISFIABLE = new ByteRanges(new long[0], new long[0], 0);
+    static final String BOUNDARY = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+    static final String MULTIPART_CONTENT_TYPE = "multipart/byteranges; boundary=" + BOUNDARY;
+
+    private final long[] starts;
+    private final long[] ends; // inclusive
+    private final int count;
+
+    private ByteRanges(long[] starts, long[] ends, int count) {
+        this.starts = starts;
+        this.ends = ends;
+        this.count = count;
+    }
+
+    /**
+     * Returns ranges to serve, UNSATISFIABLE if none of them is inside the representation (416),
+     * or null if the header is malformed or has too many ranges, then the whole representation is served.
+     */
+    static ByteRanges parse(String header, long length) {
+        if (header == null || !header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        long[][] ranges = new long[specs.length][];
+        int count = 0;
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                long start;
+                long end;
+                if (dash == 0) { // suffix range, last N bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, length - suffix);
+                    end = length - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash).trim());
+                    String last = spec.substring(dash + 1).trim();
+                    if (last.isEmpty()) {
+                        end = length - 1;
+                    } else {
+                        end = Long.parseLong(last);
+                        if (end < start) {
+                            return null;
+                        }
+                        end = Math.min(end, length - 1);
+                    }
+                }
+                if (start < 0) {
+                    return null;
+                }
+                if (start < length) {
+                    ranges[count++] = new long[]{start, end};
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        if (count == 0) {
+            return UNSATISFIABLE;
+        }
+        return merge(ranges, count);
+    }
+
+    private static ByteRanges merge(long[][] ranges, int count) {
+        Arrays.sort(ranges, 0, count, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return Long.compare(a[0], b[0]);
+            }
+        });
+        long[] starts = new long[count];
+        long[] ends = new long[count];
+        int merged = 0;
+        for (int i = 0; i < count; i++) {
+            if (merged > 0 && ranges[i][0] <= ends[merged - 1] + 1) {
+                ends[merged - 1] = Math.max(ends[merged - 1], ranges[i][1]);
+            } else {
+                starts[merged] = ranges[i][0];
+                ends[merged] = ranges[i][1];
+                merged++;
+            }
+        }
+        return new ByteRanges(starts, ends, merged);
+    }
+
+    int count() {
+        return count;
+    }
+
+    long start(int i) {
+        return starts[i];
+    }
+
+    long length(int i) {
+        return ends[i] - starts[i] + 1;
+    }
+
+    String contentRange(int i, long total) {
+        return "bytes " + starts[i] + '-' + ends[i] + '/' + total;
+    }
+
+    static String unsatisfiedContentRange(long total) {
+        return "bytes */" + total;
+    }
+
+    /**
+     * Delimiter and headers in front of part i of a multipart/byteranges body.
+     */
+    String partHeader(int i, CharSequence contentType, long total) {
+        return "\r\n--" + BOUNDARY + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Range: " + contentRange(i, total) + "\r\n\r\n";
+    }
+
+    static String closingDelimiter() {
+        return "\r\n--" + BOUNDARY + "--\r\n";
+    }
+
+    /**
+     * Content-Length of the whole multipart/byteranges body.
+     */
+    long multipartLength(CharSequence contentType, long total) {
+        long length = closingDelimiter().length();
+        for (int i = 0; i < count; i++) {
+            length += partHeader(i, contentType, total).length() + length(i);
+        }
+        return length;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Warm restarts of the file cache.
+ *
+ * While the server runs, requests per file are counted (AccessCounts) and written to a small
+ * binary snapshot every HOTNESS_SNAPSHOT_SECONDS and at shutdown. On the next start the cache
+ * is filled before the server binds, hottest files first, then the rest of PUBLIC_DIR by size,
+ * until the byte budget is used. Snapshot counts are halved on load, so old popularity fades.
+ *
+ * Startup time and the time until the cache hit rate first reaches HIT_RATE_TARGET are logged
+ * with or without preloading, so cold and warm starts can be compared.
+ */
+public class CacheWarmer {
+
+    private static final int SNAPSHOT_MAGIC = 0x484f5431; // "HOT1"
+    private static final double HIT_RATE_TARGET = 0.99;
+    private static final long HIT_RATE_CHECK_MS = 1000;
+
+    private final HttpRouterServerHandler handler;
+    private final Path snapshotPath = Paths.get(HttpRouterServer.HOTNESS_SNAPSHOT);
+    private final ScheduledExecutorService scheduler =
+            Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("cache-warmer", true));
+
+    public CacheWarmer(HttpRouterServerHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Reads the snapshot and fills the cache in parallel, returns when it is done.
+     * Does nothing unless the handler counts accesses (-Dpreload=true).
+     */
+    public void preload() {
+        if (handler.accessCounts == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<String> hottest = readSnapshot();
+        List<FileIndex.FileMetadata> order = preloadOrder(hottest);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new DefaultThreadFactory("cache-preload", true));
+        final LongAdder loaded = new LongAdder();
+        long budget = handler.fileCache.maxBytes();
+        // taken by the weight the cache charges (variants and headers), known once a file is read
+        long available = budget - handler.fileCache.weightedSize();
+        final AtomicLong left = new AtomicLong(available);
+        long planned = 0;
+        for (final FileIndex.FileMetadata file : order) {
+            // the size on disk is a lower bound of the weight, skip what can not fit anyway
+            if (planned + file.size > available) {
+                continue; // a smaller, colder file may still fit
+            }
+            planned += file.size;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (handler.preload(file.pathString, left)) {
+                        loaded.increment();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Preloaded " + loaded.sum() + " of " + order.size() + " files (" + hottest.size()
+                + " from hotness snapshot), " + handler.fileCache.weightedSize() + " of " + budget + " cache bytes in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms on " + threads + " threads");
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot();
+            }
+        }, HttpRouterServer.HOTNESS_SNAPSHOT_SECONDS, HttpRouterServer.HOTNESS_SNAPSHOT_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeSnapshot();
+            }
+        }, "hotness-snapshot"));
+    }
+
+    /**
+     * Logs the startup time and starts watching for the hit rate to reach HIT_RATE_TARGET.
+     */
+    public void started() {
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.out.println("Startup took " + (System.currentTimeMillis() - jvmStart) + " ms since JVM start");
+        HitRateWatch watch = new HitRateWatch(handler.metrics, jvmStart);
+        watch.future = scheduler.scheduleWithFixedDelay(watch, HIT_RATE_CHECK_MS, HIT_RATE_CHECK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cacheable snapshot files that still exist, hottest first, then every other cacheable file,
+     * smallest first. Files served by sendfile are left out.
+     */
+    private List<FileIndex.FileMetadata> preloadOrder(List<String> hottest) {
+        List<FileIndex.FileMetadata> order = new ArrayList<FileIndex.FileMetadata>();
+        Set<String> seen = new HashSet<String>();
+        for (String pathString : hottest) {
+            FileIndex.FileMetadata file = handler.fileIndex.get(pathString);
+            if (file != null && seen.add(pathString) && HttpRouterServerHandler.isCacheable(file)) {
+                order.add(file);
+            }
+        }
+        List<FileIndex.FileMetadata> rest = new ArrayList<FileIndex.FileMetadata>();
+        for (FileIndex.FileMetadata file : handler.fileIndex.files()) {
+            if (!seen.contains(file.pathString) && HttpRouterServerHandler.isCacheable(file)) {
+                rest.add(file);
+            }
+        }
+        Collections.sort(rest, new Comparator<FileIndex.FileMetadata>() {
+            @Override
+            public int compare(FileIndex.FileMetadata a, FileIndex.FileMetadata b) {
+                return Long.compare(a.size, b.size);
+            }
+        });
+        order.addAll(rest);
+        return order;
+    }
+
+    /**
+     * Paths of the snapshot, hottest first. Their halved counts seed AccessCounts.
+     */
+    private List<String> readSnapshot() {
+        List<String> paths = new ArrayList<String>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                System.out.println("Ignoring " + snapshotPath + ", not a hotness snapshot");
+                return paths;
+            }
+            int entries = in.readInt();
+            for (int i = 0; i < entries; i++) {
+                String pathString = in.readUTF();
+                long count = in.readLong();
+                paths.add(pathString);
+                handler.accessCounts.add(pathString, count / 2);
+            }
+        } catch (NoSuchFileException e) {
+            System.out.println("No hotness snapshot at " + snapshotPath + ", preloading by file size");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return paths;
+    }
+
+    /**
+     * Writes counts of files that still exist, hottest first, to a temp file moved over the snapshot.
+     */
+    private synchronized void writeSnapshot() {
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, Long> e : handler.accessCounts.snapshot().entrySet()) {
+            if (handler.fileIndex.get(e.getKey()) != null && e.getValue() > 0) {
+                entries.add(e);
+            }
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return Long.compare(b.getValue(), a.getValue());
+            }
+        });
+        Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Long> e : entries) {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue());
+                }
+            }
+            Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Requests per file path, counted on the event loops.
+     */
+    public static final class AccessCounts {
+        private final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<String, LongAdder>();
+
+        public void record(String pathString) {
+            counter(pathString).increment();
+        }
+
+        void add(String pathString, long count) {
+            counter(pathString).add(count);
+        }
+
+        Map<String, Long> snapshot() {
+            Map<String, Long> result = new HashMap<String, Long>();
+            for (Map.Entry<String, LongAdder> e : counts.entrySet()) {
+                result.put(e.getKey(), e.getValue().sum());
+            }
+            return result;
+        }
+
+        private LongAdder counter(String pathString) {
+            LongAdder counter = counts.get(pathString);
+            if (counter == null) {
+                LongAdder created = new LongAdder();
+                counter = counts.putIfAbsent(pathString, created);
+                if (counter == null) {
+                    counter = created;
+                }
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * Hit rate of the last interval, logged and cancelled once it reaches HIT_RATE_TARGET.
+     */
+    private static final class HitRateWatch implements Runnable {
+        private final ServerMetrics metrics;
+        private final long jvmStart;
+        private final long startedAt = System.currentTimeMillis();
+        private long hits;
+        private long misses;
+        volatile ScheduledFuture<?> future;
+
+        HitRateWatch(ServerMetrics metrics, long jvmStart) {
+            this.metrics = metrics;
+            this.jvmStart = jvmStart;
+            this.hits = metrics.getCacheHits();
+            this.misses = metrics.getCacheMisses();
+        }
+
+        @Override
+        public void run() {
+            long newHits = metrics.getCacheHits();
+            long newMisses = metrics.getCacheMisses();
+            long intervalHits = newHits - hits;
+            long lookups = intervalHits + newMisses - misses;
+            hits = newHits;
+            misses = newMisses;
+            if (lookups > 0 && intervalHits >= lookups * HIT_RATE_TARGET) {
+                long now = System.currentTimeMillis();
+                System.out.println("Cache hit rate reached " + (intervalHits * 100 / lookups) + "% "
+                        + (now - startedAt) + " ms after startup (" + (now - jvmStart) + " ms since JVM start)");
+                future.cancel(false);
+            }
+        }
+    }
+}
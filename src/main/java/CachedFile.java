@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.CharsetUtil;
+import io.netty.util.IllegalReferenceCountException;
+
+/**
+ * File content encoded once into pooled direct buffers, together with the pre-serialized
+ * status line and static headers of its 200 response.
+ *
+ * One file can have several variants: identity, gzip or deflate content coding. Compressed variants
+ * are built when the file is loaded, never per request. Content is never transcoded to another charset.
+ *
+ * The cache holds one reference. A reader retains the entry while it builds a response,
+ * the response itself gets retained duplicates, so hits never copy the content.
+ */
+final class CachedFile extends AbstractReferenceCounted {
+
+    static final int IDENTITY = 0;
+    static final int GZIP = 1;
+    static final int DEFLATE = 2;
+    static final int VARIANTS = 3;
+
+    private static final ByteBuf KEEP_ALIVE_END = PreparedResponse.constant(
+            "Connection: keep-alive\r\n\r\n".getBytes(CharsetUtil.US_ASCII));
+    private static final ByteBuf END = PreparedResponse.constant("\r\n".getBytes(CharsetUtil.US_ASCII));
+
+    final FileIndex.FileMetadata metadata;     // file version the content was read for
+    final FileIndex.FileMetadata gzipMetadata; // .gz sibling the gzip variant was read from, or null
+    final String etag;                         // of the bytes read, differs from metadata.etag() if the file changed since it was indexed
+    final boolean ascii;                       // no byte above 0x7F, the content is valid US-ASCII as it is
+    private final Variant[] variants;          // by content coding, identity is always set
+
+    CachedFile(FileIndex.FileMetadata metadata, FileIndex.FileMetadata gzipMetadata, String etag, boolean ascii,
+               Variant[] variants) {
+        this.metadata = metadata;
+        this.gzipMetadata = gzipMetadata;
+        this.etag = etag;
+        this.ascii = ascii;
+        this.variants = variants;
+    }
+
+    /**
+     * True if the content read is the version the index knows, only then it is cached.
+     */
+    boolean isCurrent() {
+        return etag.equals(metadata.etag());
+    }
+
+    /**
+     * Returns false if the entry was released meanwhile (evicted by another loop).
+     */
+    boolean tryRetain() {
+        try {
+            retain();
+            return true;
+        } catch (IllegalReferenceCountException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Variant in the requested content coding, or identity if that one was not worth keeping.
+     */
+    Variant variant(int encoding) {
+        Variant variant = variants[encoding];
+        return variant == null ? variants[IDENTITY] : variant;
+    }
+
+    /**
+     * Whole 200 response as one buffer: static headers, current Date/Expires, body.
+     * Every piece is direct, so the transports write the composite as it is, without a copy.
+     */
+    PreparedResponse newResponse(int encoding, boolean keepAlive) {
+        Variant variant = variant(encoding);
+        return new PreparedResponse(Unpooled.wrappedBuffer(
+                variant.headers.duplicate().retain(),
+                HttpDateClock.dateAndExpiresHeaders(),
+                (keepAlive ? KEEP_ALIVE_END : END).duplicate(),
+                variant.content.duplicate().retain()), variant.content.readableBytes());
+    }
+
+    /**
+     * The content is a mapping of the file (MappedFileBuf), not a copy.
+     */
+    boolean isMapped() {
+        return variants[IDENTITY].content instanceof MappedFileBuf;
+    }
+
+    long weight() {
+        long weight = 0;
+        for (Variant variant : variants) {
+            if (variant != null) {
+                weight += variant.content.capacity() + variant.headers.capacity();
+            }
+        }
+        return weight;
+    }
+
+    @Override
+    public CachedFile touch(Object hint) {
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        for (Variant variant : variants) {
+            if (variant != null) {
+                variant.content.release();
+                variant.headers.release();
+            }
+        }
+    }
+
+    static final class Variant {
+        final ByteBuf content;
+        final ByteBuf headers;               // status line and headers except Date/Expires/Connection
+        final String etag;                   // strong, differs per content coding
+        final CharSequence contentEncoding;  // null for identity
+        final boolean varyAcceptEncoding;
+
+        Variant(ByteBuf content, ByteBuf headers, String etag, CharSequence contentEncoding, boolean varyAcceptEncoding) {
+            this.content = content;
+            this.headers = headers;
+            this.etag = etag;
+            this.contentEncoding = contentEncoding;
+            this.varyAcceptEncoding = varyAcceptEncoding;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Caps open connections, in total and per client address, at accept time.
+ *
+ * Sits in the pipeline of the listening channel(s), in front of the bootstrap acceptor: an accepted
+ * channel over a cap is closed before it is registered with a worker event loop, so it never gets
+ * a pipeline or buffers. Counts drop when an admitted channel closes.
+ */
+@ChannelHandler.Sharable
+public class ConnectionLimiter extends ChannelInboundHandlerAdapter {
+
+    private static final BiFunction<Integer, Integer, Integer> SUM = new BiFunction<Integer, Integer, Integer>() {
+        @Override
+        public Integer apply(Integer count, Integer one) {
+            return count + one;
+        }
+    };
+    private static final BiFunction<InetAddress, Integer, Integer> DECREMENT = new BiFunction<InetAddress, Integer, Integer>() {
+        @Override
+        public Integer apply(InetAddress address, Integer count) {
+            return count == 1 ? null : count - 1; // null removes the address
+        }
+    };
+
+    private final int maxConnections;
+    private final int maxConnectionsPerAddress;
+    private final ServerMetrics metrics;
+    private final AtomicInteger open = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, Integer> openByAddress = new ConcurrentHashMap<InetAddress, Integer>();
+
+    /**
+     * @param maxConnections           0 - no total cap
+     * @param maxConnectionsPerAddress 0 - no per address cap
+     */
+    public ConnectionLimiter(int maxConnections, int maxConnectionsPerAddress, ServerMetrics metrics) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        final Channel child = (Channel) msg;
+        final InetAddress address = addressOf(child.remoteAddress());
+        if (!acquire(address)) {
+            metrics.connectionRejected();
+            child.unsafe().closeForcibly();
+            return;
+        }
+        metrics.connectionOpened();
+        child.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) {
+                release(address);
+                metrics.connectionClosed();
+            }
+        });
+        ctx.fireChannelRead(child);
+    }
+
+    private boolean acquire(InetAddress address) {
+        if (open.incrementAndGet() > maxConnections && maxConnections > 0) {
+            open.decrementAndGet();
+            return false;
+        }
+        if (address != null && maxConnectionsPerAddress > 0
+                && openByAddress.merge(address, 1, SUM) > maxConnectionsPerAddress) {
+            release(address);
+            return false;
+        }
+        return true;
+    }
+
+    private void release(InetAddress address) {
+        if (address != null && maxConnectionsPerAddress > 0) {
+            openByAddress.computeIfPresent(address, DECREMENT);
+        }
+        open.decrementAndGet();
+    }
+
+    private static InetAddress addressOf(SocketAddress remote) {
+        return remote instanceof InetSocketAddress ? ((InetSocketAddress) remote).getAddress() : null;
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte-budgeted file cache shared by all event loops.
+ *
+ * Lookups are a plain ConcurrentHashMap read. A read is then recorded into one of a few
+ * striped, lossy ring buffers (picked by thread) and the frequency and recency bookkeeping
+ * is replayed later under the eviction lock, so a hit costs one CAS and never blocks.
+ * A full buffer drops the read; losing a few samples only blurs the statistics.
+ * Eviction is segmented LRU (probation + protected segment), and a new key is admitted
+ * only when it was requested at least as often as each entry it would evict (TinyLFU).
+ *
+ * The cache owns the values put into it: every value that leaves the cache (evicted,
+ * removed, replaced or not admitted at all) is handed to the RemovalListener exactly once.
+ */
+public class FileCache<V> {
+
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int READ_BUFFERS = Integer.highestOneBit(
+            Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+
+    private final ConcurrentHashMap<String, Node<V>> data = new ConcurrentHashMap<String, Node<V>>();
+    private final FrequencySketch sketch;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer[] readBuffers = new ReadBuffer[READ_BUFFERS];
+    private final RemovalListener<V> removalListener;
+    private final long maxBytes;
+    private final long maxProtectedBytes;
+
+    // guarded by evictionLock
+    private final Node<V> probation = new Node<V>(null, null, 0);
+    private final Node<V> protectedSegment = new Node<V>(null, null, 0);
+    private long probationBytes;
+    private long protectedBytes;
+    private long evictions;
+    private long rejections;
+
+    public FileCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    public FileCache(long maxBytes, RemovalListener<V> removalListener) {
+        this.maxBytes = maxBytes;
+        this.removalListener = removalListener;
+        this.maxProtectedBytes = maxBytes * PROTECTED_PERCENT / 100;
+        this.sketch = new FrequencySketch(1024);
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    /**
+     * Returns cached value or null. Every lookup, hit or miss, counts towards key frequency.
+     */
+    public V get(String key) {
+        Node<V> node = data.get(key);
+        // a miss records the key itself so its frequency still counts for admission
+        ReadBuffer buffer = readBuffers[stripe()];
+        if (buffer.offer(node != null ? node : key) && evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+        return node != null ? node.value : null;
+    }
+
+    /**
+     * Puts value with its size in bytes, evicting cold entries to stay in the budget.
+     * Returns false if the value was not admitted (too big or colder than the victim).
+     */
+    public boolean put(String key, V value, long weight) {
+        if (weight > maxBytes) {
+            remove(key);
+            evictionLock.lock();
+            try {
+                rejections++;
+            } finally {
+                evictionLock.unlock();
+            }
+            notifyRemoval(key, value);
+            return false;
+        }
+        Node<V> node = new Node<V>(key, value, weight);
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            Node<V> old = data.get(key);
+            if (old != null) {
+                data.remove(key, old);
+                unlink(old);
+                notifyRemoval(key, old.value);
+            }
+            if (old == null && probationBytes + protectedBytes + weight > maxBytes && !admits(key, weight)) {
+                rejections++;
+                notifyRemoval(key, value);
+                return false;
+            }
+            while (probationBytes + protectedBytes + weight > maxBytes) {
+                Node<V> victim = nextVictim();
+                data.remove(victim.key, victim);
+                unlink(victim);
+                evictions++;
+                notifyRemoval(victim.key, victim.value);
+            }
+            linkLast(probation, node);
+            probationBytes += weight;
+            data.put(key, node);
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the entry only if it still maps to the given value,
+     * so a stale reader does not drop a freshly loaded replacement.
+     */
+    public boolean remove(String key, V value) {
+        evictionLock.lock();
+        try {
+            Node<V> node = data.get(key);
+            if (node == null || node.value != value) {
+                return false;
+            }
+            data.remove(key, node);
+            unlink(node);
+            notifyRemoval(key, value);
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public void remove(String key) {
+        evictionLock.lock();
+        try {
+            Node<V> node = data.remove(key);
+            if (node != null) {
+                unlink(node);
+                notifyRemoval(key, node.value);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public int size() {
+        return data.size();
+    }
+
+    public long weightedSize() {
+        evictionLock.lock();
+        try {
+            return probationBytes + protectedBytes;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Entries dropped to make room for new ones.
+     */
+    public long evictionCount() {
+        evictionLock.lock();
+        try {
+            return evictions;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Values not admitted by put: bigger than the budget or colder than the victim.
+     */
+    public long rejectionCount() {
+        evictionLock.lock();
+        try {
+            return rejections;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+
+    private void notifyRemoval(String key, V value) {
+        if (removalListener != null) {
+            removalListener.onRemoval(key, value);
+        }
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ id >>> 32) * 0x9e3779b9;
+        return (h ^ h >>> 16) & (READ_BUFFERS - 1);
+    }
+
+    // guarded by evictionLock
+    @SuppressWarnings("unchecked")
+    private void drainReadBuffers() {
+        for (ReadBuffer buffer : readBuffers) {
+            Object read;
+            while ((read = buffer.poll()) != null) {
+                if (read instanceof Node) {
+                    Node<V> node = (Node<V>) read;
+                    sketch.increment(node.key.hashCode());
+                    onHit(node);
+                } else {
+                    sketch.increment(read.hashCode());
+                }
+            }
+        }
+    }
+
+    private void onHit(Node<V> node) {
+        if (node.prev == null) { // already removed
+            return;
+        }
+        if (node.inProtected) {
+            unlinkNode(node);
+            linkLast(protectedSegment, node);
+            return;
+        }
+        // promote probation -> protected, demoting protected LRU entries if it is full
+        unlinkNode(node);
+        probationBytes -= node.weight;
+        node.inProtected = true;
+        linkLast(protectedSegment, node);
+        protectedBytes += node.weight;
+        while (protectedBytes > maxProtectedBytes) {
+            Node<V> demoted = protectedSegment.next;
+            unlinkNode(demoted);
+            protectedBytes -= demoted.weight;
+            demoted.inProtected = false;
+            linkLast(probation, demoted);
+            probationBytes += demoted.weight;
+        }
+    }
+
+    /**
+     * TinyLFU admission against every entry the put would evict, in eviction order: a big value
+     * making room by evicting several entries is rejected if any of them was requested more often.
+     */
+    private boolean admits(String key, long weight) {
+        int frequency = sketch.frequency(key.hashCode());
+        long needed = probationBytes + protectedBytes + weight - maxBytes;
+        Node<V> head = probation;
+        Node<V> victim = probation.next;
+        while (needed > 0) {
+            if (victim == head) { // probation done, then the protected segment
+                if (head == protectedSegment) {
+                    break;
+                }
+                head = protectedSegment;
+                victim = head.next;
+                continue;
+            }
+            if (frequency < sketch.frequency(victim.key.hashCode())) {
+                return false;
+            }
+            needed -= victim.weight;
+            victim = victim.next;
+        }
+        return true;
+    }
+
+    private Node<V> nextVictim() {
+        if (probation.next != probation) {
+            return probation.next;
+        }
+        if (protectedSegment.next != protectedSegment) {
+            return protectedSegment.next;
+        }
+        return null;
+    }
+
+    private void unlink(Node<V> node) {
+        if (node.prev == null) {
+            return;
+        }
+        unlinkNode(node);
+        if (node.inProtected) {
+            protectedBytes -= node.weight;
+        } else {
+            probationBytes -= node.weight;
+        }
+    }
+
+    private static <V> void unlinkNode(Node<V> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    private static <V> void linkLast(Node<V> head, Node<V> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    public interface RemovalListener<V> {
+        void onRemoval(String key, V value);
+    }
+
+    /**
+     * Bounded ring buffer of recorded reads: many producers, one consumer under the
+     * eviction lock. offer never waits; it drops the read if the buffer is full or another
+     * thread won the race for the slot.
+     */
+    static final class ReadBuffer {
+        static final int SIZE = 16;
+        private static final int MASK = SIZE - 1;
+
+        private final AtomicReferenceArray<Object> slots = new AtomicReferenceArray<Object>(SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter; // written only by the consumer
+
+        /**
+         * Records a read and returns true if the buffer is now full and should be drained.
+         */
+        boolean offer(Object read) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            if (tail - head >= SIZE) {
+                return true;
+            }
+            if (!writeCounter.compareAndSet(tail, tail + 1)) {
+                return false;
+            }
+            slots.lazySet((int) tail & MASK, read);
+            return tail + 1 - head >= SIZE;
+        }
+
+        Object poll() {
+            long head = readCounter;
+            int index = (int) head & MASK;
+            Object read = slots.get(index);
+            if (read == null) { // empty, or the producer has not published the slot yet
+                return null;
+            }
+            slots.lazySet(index, null);
+            readCounter = head + 1;
+            return read;
+        }
+    }
+
+    static final class Node<V> {
+        final String key;
+        final V value;
+        final long weight;
+
+        // guarded by evictionLock
+        Node<V> prev;
+        Node<V> next;
+        boolean inProtected;
+
+        Node(String key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            if (key == null) { // list head
+                prev = this;
+                next = this;
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit style counters (saturating at 15), halved every
+     * sampleSize increments so old popularity fades out. Guarded by the eviction lock.
+     */
+    static final class FrequencySketch {
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x97cb3127, 0xb2ab4f8b, 0x85ebca6b, 0xc2b2ae35};
+
+        private final int[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(expectedEntries, 16) * 4 - 1) << 1;
+            table = new int[width];
+            mask = width - 1;
+            sampleSize = width * 10;
+        }
+
+        void increment(int hash) {
+            for (int i = 0; i < SEEDS.length; i++) {
+                int index = indexOf(hash, i);
+                if (table[index] < MAX_COUNT) {
+                    table[index]++;
+                }
+            }
+            if (++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int min = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++) {
+                min = Math.min(min, table[indexOf(hash, i)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            additions = 0;
+            for (int i = 0; i < table.length; i++) {
+                table[i] >>>= 1;
+            }
+        }
+
+        private int indexOf(int hash, int i) {
+            int h = hash * SEEDS[i];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
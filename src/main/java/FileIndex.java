@@ -0,0 +1,468 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * In-memory metadata (size, mtime, ETag) of the files in PUBLIC_DIR, so requests do not stat the disk.
+ * The ETag is a CRC32 of the content, computed once per file version: a touch keeps it,
+ * an edit within the same second changes it. Content is hashed off the startup and watcher threads,
+ * on the file-index-hasher thread, or by the first cache load of the version, whichever comes first;
+ * until then the version has no validator (no ETag, no fingerprinted URL).
+ *
+ * Kept up to date by a WatchService thread. If the platform has no usable WatchService,
+ * or -DfileWatch=poll is set, the directory is rescanned every FILE_WATCH_POLL_MS instead.
+ * Every change (new, modified, deleted file) is reported to the ChangeListener.
+ * Router serves only public/:id, so only the top level of the directory is indexed.
+ */
+public class FileIndex {
+
+    private final String dir;
+    private final ChangeListener listener;
+    private final ConcurrentHashMap<String, FileMetadata> files = new ConcurrentHashMap<String, FileMetadata>();
+    private final ExecutorService hasher = Executors.newSingleThreadExecutor(daemonThreadFactory("file-index-hasher"));
+    private WatchService watchService;
+    private ScheduledExecutorService poller;
+
+    public FileIndex(String dir, ChangeListener listener) {
+        this.dir = dir;
+        this.listener = listener;
+    }
+
+    /**
+     * Scans the directory and starts watching it.
+     */
+    public void start(boolean useWatchService, long pollIntervalMs) {
+        rescan();
+        if (useWatchService) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+                Paths.get(dir).register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+                Thread watcher = daemonThreadFactory("file-index-watcher").newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        watchLoop();
+                    }
+                });
+                watcher.start();
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println("WatchService is not available for " + dir + ", polling every " + pollIntervalMs + "ms: " + e);
+                stopWatchService();
+            }
+        }
+        poller = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("file-index-poller"));
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                rescan();
+            }
+        }, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        stopWatchService();
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+        hasher.shutdownNow();
+    }
+
+    /**
+     * Returns metadata of a visible regular file, path as PUBLIC_DIR + name, or null if there is no such file.
+     */
+    public FileMetadata get(String pathString) {
+        return files.get(pathString);
+    }
+
+    /**
+     * Metadata of every indexed file, a view that follows changes.
+     */
+    public Collection<FileMetadata> files() {
+        return files.values();
+    }
+
+    private void watchLoop() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan();
+                    } else { // the content may have changed even if size and mtime did not
+                        refresh(dir + event.context(), true);
+                    }
+                }
+                if (!key.reset()) { // directory itself is gone
+                    rescan();
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    /**
+     * Re-reads all files of the directory, reporting new, changed and removed ones.
+     */
+    synchronized void rescan() {
+        Set<String> seen = new HashSet<String>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(dir))) {
+            for (Path path : stream) {
+                String pathString = dir + path.getFileName();
+                seen.add(pathString);
+                refresh(pathString, false);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Map.Entry<String, FileMetadata> entry : files.entrySet()) {
+            if (!seen.contains(entry.getKey())) {
+                files.remove(entry.getKey());
+                listener.onChange(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Re-reads metadata of one file, reports it if it is different from the indexed one.
+     * A new version (hashed later) is created if modified is set or size or mtime changed.
+     */
+    synchronized void refresh(String pathString, boolean modified) {
+        FileMetadata old = files.get(pathString);
+        FileMetadata current = read(pathString, old, modified);
+        if (old == null && current == null || old == current) {
+            return; // keep identity, cached entries refer to it
+        }
+        if (current == null) {
+            files.remove(pathString);
+        } else {
+            files.put(pathString, current);
+            hashLater(current);
+        }
+        listener.onChange(pathString);
+    }
+
+    private void hashLater(final FileMetadata file) {
+        try {
+            hasher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (file.etag() == null && files.get(file.pathString) == file) { // not loaded nor replaced meanwhile
+                        hash(file);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopped
+        }
+    }
+
+    private static void hash(FileMetadata file) {
+        CRC32 crc = new CRC32();
+        long length = 0;
+        byte[] buffer = new byte[65536];
+        try (InputStream in = Files.newInputStream(Paths.get(file.pathString))) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, read);
+                length += read;
+            }
+        } catch (IOException e) {
+            return; // deleted meanwhile, the watcher reports it
+        }
+        file.validate(crc.getValue(), length);
+    }
+
+    /**
+     * Returns old itself if size and mtime are the same and the change was not reported by the watcher.
+     */
+    private static FileMetadata read(String pathString, FileMetadata old, boolean modified) {
+        Path path = Paths.get(pathString);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isRegularFile() || Files.isHidden(path)) {
+                return null;
+            }
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            if (!modified && old != null && old.size == attrs.size() && old.lastModified == lastModified) {
+                return old;
+            }
+            // same inode as a version that was mapped: written over instead of replaced by rename
+            Object fileKey = attrs.fileKey();
+            boolean writtenInPlace = old != null && (old.writtenInPlace
+                    || old.mapped && fileKey != null && fileKey.equals(old.fileKey));
+            return new FileMetadata(pathString, attrs.size(), lastModified, fileKey, writtenInPlace);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    static long crc32(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    /**
+     * A direct buffer (a mapping) is copied to the heap a long at a time: a page of a file truncated
+     * under the mapping then fails the read with InternalError. Native code reading it (CRC32 of a
+     * direct buffer, bulk copies on JDK 8) dies of SIGBUS and takes the JVM down.
+     */
+    static long crc32(ByteBuffer content) {
+        CRC32 crc = new CRC32();
+        ByteBuffer src = content.duplicate();
+        if (!src.isDirect()) {
+            crc.update(src);
+            return crc.getValue();
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(Math.min(src.remaining(), 65536)).order(src.order());
+        while (src.hasRemaining()) {
+            chunk.clear();
+            while (src.remaining() >= 8 && chunk.remaining() >= 8) {
+                chunk.putLong(src.getLong());
+            }
+            while (src.hasRemaining() && chunk.hasRemaining()) {
+                chunk.put(src.get());
+            }
+            crc.update(chunk.array(), 0, chunk.position());
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * public/app.1a2b3c4d.js -> public/app.js, public/LICENSE.1a2b3c4d -> public/LICENSE,
+     * or null if the name has no fingerprint segment.
+     */
+    public static String withoutFingerprint(String pathString) {
+        int slash = pathString.lastIndexOf('/');
+        int last = pathString.lastIndexOf('.');
+        if (last <= slash) {
+            return null;
+        }
+        if (isFingerprint(pathString, last + 1, pathString.length())) { // no extension
+            return pathString.substring(0, last);
+        }
+        int previous = pathString.lastIndexOf('.', last - 1);
+        if (previous <= slash || !isFingerprint(pathString, previous + 1, last)) {
+            return null;
+        }
+        return pathString.substring(0, previous) + pathString.substring(last);
+    }
+
+    private static boolean isFingerprint(String s, int start, int end) {
+        if (end - start != FileMetadata.FINGERPRINT_LENGTH) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (!(c >= '0' && c <= '9' || c >= 'a' && c <= 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void stopWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    public interface ChangeListener {
+        void onChange(String pathString);
+    }
+
+    /**
+     * Snapshot of one file version. A new instance is created on every change,
+     * so cached content can be checked against the index with an identity comparison.
+     * The validator is set once, when the content of the version is first hashed.
+     */
+    public static final class FileMetadata {
+        static final int FINGERPRINT_LENGTH = 8;
+        // variants the server builds, their ETags are "<etag>-<variant>"
+        private static final CharSequence[] VARIANTS = {
+                Compression.GZIP, Compression.DEFLATE };
+
+        public final String pathString;
+        public final long size;
+        public final long lastModified;
+        public final String lastModifiedString;
+        public final CharSequence contentType;
+        // a mapped version of the file was rewritten in place, later versions are not mapped
+        public final boolean writtenInPlace;
+        final Object fileKey; // inode, null if the file system has none
+        volatile boolean mapped; // content was cached as a mapping of the file
+        private volatile Validator validator; // null until the content is hashed
+
+        FileMetadata(String pathString, long size, long lastModified) {
+            this(pathString, size, lastModified, null, false);
+        }
+
+        FileMetadata(String pathString, long size, long lastModified, Object fileKey, boolean writtenInPlace) {
+            this.pathString = pathString;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.writtenInPlace = writtenInPlace;
+            this.lastModifiedString = HttpDateClock.format(lastModified);
+            this.contentType = MimeTypes.forPath(pathString);
+        }
+
+        /**
+         * Strong ETag, "<fingerprint>-<size in hex>", or null if the content is not hashed yet.
+         */
+        public String etag() {
+            Validator v = validator;
+            return v == null ? null : v.etag;
+        }
+
+        /**
+         * CRC32 of the content, 8 hex digits, or null if the content is not hashed yet.
+         */
+        public String fingerprint() {
+            Validator v = validator;
+            return v == null ? null : v.fingerprint;
+        }
+
+        /**
+         * public/app.<fingerprint>.js, served as immutable, or null if the content is not hashed yet.
+         */
+        public String fingerprintedPathString() {
+            Validator v = validator;
+            return v == null ? null : v.fingerprintedPathString;
+        }
+
+        /**
+         * Sets the validator from content read for this version, unless it is already set
+         * or the length shows the file changed since. Returns the ETag of the version, or null.
+         */
+        String validate(long crc32, long length) {
+            if (validator == null && length == size) {
+                synchronized (this) {
+                    if (validator == null) {
+                        validator = new Validator(pathString, crc32, size);
+                    }
+                }
+            }
+            return etag();
+        }
+
+        /**
+         * ETag of a content coding variant, strong validators differ per representation.
+         */
+        public String etag(CharSequence variant) {
+            String etag = etag();
+            return etag == null ? null : etag(etag, variant);
+        }
+
+        /**
+         * "<CRC32 as 8 hex digits>-<size in hex>", also used for content read into the cache.
+         */
+        static String etag(long crc32, long size) {
+            return "\"" + String.format("%08x", crc32) + '-' + Long.toHexString(size) + '"';
+        }
+
+        static String etag(String etag, CharSequence variant) {
+            return variant == null ? etag : etag.substring(0, etag.length() - 1) + '-' + variant + '"';
+        }
+
+        /**
+         * True if the opaque tag (quoted, without W/) is exactly the ETag of this version or of one of its variants.
+         */
+        public boolean matches(String opaqueTag) {
+            String etag = etag();
+            if (etag == null) {
+                return false;
+            }
+            if (opaqueTag.equals(etag)) {
+                return true;
+            }
+            int prefix = etag.length() - 1;
+            if (!(opaqueTag.length() > prefix + 2 && opaqueTag.regionMatches(0, etag, 0, prefix)
+                    && opaqueTag.charAt(prefix) == '-' && opaqueTag.charAt(opaqueTag.length() - 1) == '"')) {
+                return false;
+            }
+            for (CharSequence variant : VARIANTS) {
+                if (opaqueTag.length() == prefix + variant.length() + 2
+                        && opaqueTag.regionMatches(prefix + 1, variant.toString(), 0, variant.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Validator {
+        final String fingerprint;
+        final String fingerprintedPathString;
+        final String etag;
+
+        Validator(String pathString, long crc32, long size) {
+            fingerprint = String.format("%08x", crc32);
+            int slash = pathString.lastIndexOf('/');
+            int dot = pathString.lastIndexOf('.');
+            fingerprintedPathString = dot > slash + 1
+                    ? pathString.substring(0, dot) + '.' + fingerprint + pathString.substring(dot)
+                    : pathString + '.' + fingerprint;
+            etag = FileMetadata.etag(crc32, size);
+        }
+    }
+}
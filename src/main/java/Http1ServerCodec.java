@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.CombinedChannelDuplexHandler;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.util.List;
+
+/**
+ * HTTP/1 request decoder and response encoder, like HttpServerCodec without its queue of request methods.
+ *
+ * HttpServerCodec queues the method of every decoded request and takes one off per HttpResponse it encodes.
+ * PreparedResponse is written below the codec, so with it the queue only grew (per keep-alive connection)
+ * and a later HEAD was matched with the wrong response. Nothing here depends on the request method:
+ * the handler answers every request with exactly one response and HEAD with a bodiless 405.
+ */
+public class Http1ServerCodec extends CombinedChannelDuplexHandler<HttpRequestDecoder, HttpResponseEncoder>
+        implements HttpServerUpgradeHandler.SourceCodec {
+
+    private final RequestDecoder decoder = new RequestDecoder();
+
+    public Http1ServerCodec() {
+        init(decoder, new HttpResponseEncoder());
+    }
+
+    /**
+     * True while part of a request has been read and the rest has not, the read timeout applies only then.
+     */
+    public boolean receivingRequest() {
+        return decoder.receiving;
+    }
+
+    @Override
+    public void upgradeFrom(ChannelHandlerContext ctx) {
+        ctx.pipeline().remove(this);
+    }
+
+    private static final class RequestDecoder extends HttpRequestDecoder {
+        boolean receiving;
+
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf buffer, List<Object> out) throws Exception {
+            if (buffer.isReadable()) {
+                receiving = true;
+            }
+            super.decode(ctx, buffer, out);
+            if (!out.isEmpty() && out.get(out.size() - 1) instanceof LastHttpContent && !buffer.isReadable()) {
+                receiving = false;
+            }
+        }
+    }
+}
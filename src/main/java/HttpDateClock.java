@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.AsciiString;
+import io.netty.util.CharsetUtil;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Shared HTTP date clock. Date and Expires values are rendered at most once per second
+ * and reused by all event loops, so reading them on the request path allocates nothing.
+ */
+final class HttpDateClock {
+
+    private static final SimpleDateFormat FORMATTER = newFormatter(); // guarded by HttpDateClock.class
+
+    private static volatile Tick tick = new Tick(-1);
+
+    private HttpDateClock() {
+    }
+
+    /**
+     * Date header value for the current second.
+     */
+    static CharSequence date() {
+        return current().date;
+    }
+
+    /**
+     * Expires header value, current second plus HTTP_CACHE_SECONDS.
+     */
+    static CharSequence expires() {
+        return current().expires;
+    }
+
+    /**
+     * Returns "Date: ...\r\nExpires: ...\r\n" for the current second, caller owns the duplicate.
+     */
+    static ByteBuf dateAndExpiresHeaders() {
+        return current().headers.duplicate();
+    }
+
+    /**
+     * Formats any instant, used when file metadata changes, not per request.
+     */
+    static synchronized String format(long millis) {
+        return FORMATTER.format(new Date(millis));
+    }
+
+    private static Tick current() {
+        long second = System.currentTimeMillis() / 1000;
+        Tick current = tick;
+        if (current.second != second) {
+            current = new Tick(second);
+            tick = current;
+        }
+        return current;
+    }
+
+    private static SimpleDateFormat newFormatter() {
+        SimpleDateFormat dateFormatter = new SimpleDateFormat(HttpRouterServerHandler.HTTP_DATE_FORMAT, Locale.US);
+        dateFormatter.setTimeZone(TimeZone.getTimeZone(HttpRouterServerHandler.HTTP_DATE_GMT_TIMEZONE));
+        return dateFormatter;
+    }
+
+    private static final class Tick {
+        final long second;
+        final CharSequence date;
+        final CharSequence expires;
+        final ByteBuf headers;
+
+        Tick(long second) {
+            this.second = second;
+            long now = second * 1000;
+            String date = format(now);
+            String expires = format(now + HttpRouterServerHandler.HTTP_CACHE_SECONDS * 1000L);
+            this.date = AsciiString.cached(date);
+            this.expires = AsciiString.cached(expires);
+            this.headers = PreparedResponse.constant(
+                    ("Date: " + date + "\r\nExpires: " + expires + "\r\n").getBytes(CharsetUtil.US_ASCII));
+        }
+    }
+}
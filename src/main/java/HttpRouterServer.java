@@ -15,19 +15,69 @@
  */
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.router.Router;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 public class HttpRouterServer {
 
-    public static final int PORT = 8000;
+    public static final int PORT = Integer.parseInt(System.getProperty("port", "8000"));
+    public static final String TRANSPORT = System.getProperty("transport", "auto"); // auto, epoll, nio
+    public static final int ACCEPTORS = Integer.parseInt(System.getProperty("acceptors", "1")); // >1 binds with SO_REUSEPORT, epoll only
+    public static final int WORKER_THREADS = Integer.parseInt(System.getProperty("workerThreads", "0")); // 0 - netty default, 2 * cores
+    public static final int SO_BACKLOG = Integer.parseInt(System.getProperty("backlog", "1024"));
+    public static final int SO_RCVBUF = Integer.parseInt(System.getProperty("rcvBuf", "0")); // 0 - OS default
+    public static final int SO_SNDBUF = Integer.parseInt(System.getProperty("sndBuf", "0")); // 0 - OS default
+    public static final String ALLOCATOR = System.getProperty("allocator", "pooled"); // pooled, unpooled
+    public static final boolean HTTP2 = !"false".equals(System.getProperty("http2")); // h2c upgrade and prior knowledge
+    public static final int FLUSH_AFTER = Integer.parseInt(System.getProperty("flushAfter", "256")); // flushes merged per read, 0 - flush every response
+    public static final int READ_TIMEOUT_SECONDS = Integer.parseInt(System.getProperty("readTimeout", "20")); // rest of a started request, 0 - none
+    public static final int WRITE_TIMEOUT_SECONDS = Integer.parseInt(System.getProperty("writeTimeout", "30")); // pending response not draining, 0 - none
+    public static final int IDLE_TIMEOUT_SECONDS = Integer.parseInt(System.getProperty("idleTimeout", "60")); // nothing read nor written, 0 - none
+    public static final int WRITE_BUFFER_LOW = Integer.parseInt(System.getProperty("writeBufferLow", "32768"));
+    public static final int WRITE_BUFFER_HIGH = Integer.parseInt(System.getProperty("writeBufferHigh", "131072")); // above it reading stops until below low
+    public static final int MAX_CONNECTIONS = Integer.parseInt(System.getProperty("maxConnections", "10000")); // 0 - no cap
+    public static final int MAX_CONNECTIONS_PER_IP = Integer.parseInt(System.getProperty("maxConnectionsPerIp", "256")); // 0 - no cap
+    public static final int CACHE_MAX_AGE_SECONDS = Integer.parseInt(System.getProperty("maxAge", "60")); // Cache-Control max-age and Expires
+    public static final boolean FINGERPRINTS = !"false".equals(System.getProperty("fingerprints")); // app.<crc32>.js served as immutable
+    public static final double RATE_LIMIT = Double.parseDouble(System.getProperty("rateLimit", "0")); // requests/s per client IP, 0 - no limit
+    public static final int RATE_BURST = Integer.parseInt(System.getProperty("rateBurst", String.valueOf((int) Math.max(RATE_LIMIT, 1))));
+    public static final double MISS_RATE_LIMIT = Double.parseDouble(System.getProperty("missRateLimit", String.valueOf(Math.max(RATE_LIMIT / 10, 1)))); // disk reads/s per client IP
+    public static final int MISS_RATE_BURST = Integer.parseInt(System.getProperty("missRateBurst", String.valueOf((int) Math.max(MISS_RATE_LIMIT, 1))));
+    public static final int RATE_LIMIT_TABLE = Integer.parseInt(System.getProperty("rateLimitTable", "65536")); // buckets, fixed memory
+    public static final String ACCESS_LOG = System.getProperty("accessLog", "access.log"); // off - no access log
+    public static final String ACCESS_LOG_FORMAT = System.getProperty("accessLogFormat", "combined"); // combined, json
+    public static final long ACCESS_LOG_MAX_BYTES = Long.parseLong(System.getProperty("accessLogMaxBytes", "104857600")); //100MB, then rolled to .1
+    public static final int ACCESS_LOG_FILES = Integer.parseInt(System.getProperty("accessLogFiles", "5")); // rolled files kept
+    public static final int ACCESS_LOG_BUFFER = Integer.parseInt(System.getProperty("accessLogBuffer", "16384")); // records waiting for the writer, more are dropped
     public static final String PUBLIC_DIR = "public/";
     public static final boolean FILE_MEMORY_CACHING = true;
-    public static final long MEMORY_CACHE_EXPIRES_IN_MS = 60000L; //60sec
+    public static final boolean FILE_WATCH_SERVICE = !"poll".equals(System.getProperty("fileWatch")); // -DfileWatch=poll to poll instead
+    public static final long FILE_WATCH_POLL_MS = Long.parseLong(System.getProperty("fileWatchPollMs", "2000"));
+    public static final boolean COMPRESSION = !"false".equals(System.getProperty("compression")); // gzip/deflate variants of text files
+    public static final long SENDFILE_THRESHOLD_BYTES = Long.parseLong(System.getProperty("sendfileThreshold", "1048576")); //1MB, bigger files are not cached
+    public static final long MMAP_THRESHOLD_BYTES = Long.parseLong(System.getProperty("mmapThreshold", "102400")); //100KB, binary files up to sendfileThreshold are cached as mappings
+    public static final int FILE_IO_THREADS = Integer.parseInt(System.getProperty("fileIoThreads", "4")); // cache misses are read here, 0 - on the event loop
+    public static final int FILE_IO_QUEUE = Integer.parseInt(System.getProperty("fileIoQueue", "1024")); // more pending misses are answered with 503
+    public static final long MEMORY_CACHE_MAX_BYTES = Long.parseLong(System.getProperty("cacheMaxBytes", "67108864")); //64MB
+    public static final boolean PRELOAD = "true".equals(System.getProperty("preload")); // fill the cache before binding, hottest files first
+    public static final String HOTNESS_SNAPSHOT = System.getProperty("hotnessSnapshot", "cache-hotness.dat"); // request counts per file
+    public static final long HOTNESS_SNAPSHOT_SECONDS = Long.parseLong(System.getProperty("hotnessSnapshotSeconds", "60")); // and at shutdown
 
 
 
@@ -36,6 +86,7 @@ public class HttpRouterServer {
             .GET(PUBLIC_DIR+":id", "public")
             .GET("/", "index")
             .GET(PUBLIC_DIR, "index")
+            .GET("metrics", "metrics")
 //            .GET("/image", "base64")
 //            .GET("/img", "image")
 //            .GET("/",             "Index page")
@@ -43,24 +94,71 @@ public class HttpRouterServer {
             .notFound("404 Not Found");
         System.out.println(router);
 
-        NioEventLoopGroup bossGroup   = new NioEventLoopGroup(1);
-        NioEventLoopGroup workerGroup = new NioEventLoopGroup();
+        boolean epoll = useEpoll();
+        // with SO_REUSEPORT every listener has its own socket and accept thread, the kernel spreads connections
+        int listeners = epoll ? Math.max(ACCEPTORS, 1) : 1;
+        if (!epoll && ACCEPTORS > 1) {
+            System.out.println("SO_REUSEPORT needs epoll transport, binding one listener");
+        }
+        EventLoopGroup bossGroup   = epoll ? new EpollEventLoopGroup(listeners) : new NioEventLoopGroup(1);
+        EventLoopGroup workerGroup = epoll ? new EpollEventLoopGroup(WORKER_THREADS) : new NioEventLoopGroup(WORKER_THREADS);
+        ByteBufAllocator allocator = "unpooled".equals(ALLOCATOR) ? UnpooledByteBufAllocator.DEFAULT : PooledByteBufAllocator.DEFAULT;
+        HttpRouterServerInitializer initializer = new HttpRouterServerInitializer(router);
+        initializer.handler().metrics.register(); // JMX, same values as /metrics
+        CacheWarmer cacheWarmer = new CacheWarmer(initializer.handler());
+        cacheWarmer.preload();
 
         try {
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
+             .option(ChannelOption.SO_BACKLOG, SO_BACKLOG)
+             .option(ChannelOption.ALLOCATOR, allocator)
+             .childOption(ChannelOption.ALLOCATOR, allocator)
              .childOption(ChannelOption.TCP_NODELAY, java.lang.Boolean.TRUE)
              .childOption(ChannelOption.SO_KEEPALIVE, java.lang.Boolean.TRUE)
-             .channel(NioServerSocketChannel.class)
-             .childHandler(new HttpRouterServerInitializer(router));
+             .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(WRITE_BUFFER_LOW, WRITE_BUFFER_HIGH))
+             .channel(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+             .handler(new ConnectionLimiter(MAX_CONNECTIONS, MAX_CONNECTIONS_PER_IP, initializer.handler().metrics))
+             .childHandler(initializer);
+            if (SO_RCVBUF > 0) {
+                b.option(ChannelOption.SO_RCVBUF, SO_RCVBUF); // accepted sockets inherit it with window scaling
+                b.childOption(ChannelOption.SO_RCVBUF, SO_RCVBUF);
+            }
+            if (SO_SNDBUF > 0) {
+                b.childOption(ChannelOption.SO_SNDBUF, SO_SNDBUF);
+            }
+            if (listeners > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, java.lang.Boolean.TRUE);
+            }
 
-            Channel ch = b.bind(PORT).sync().channel();
-            System.out.println("Server started: http://127.0.0.1:" + PORT + '/');
+            List<Channel> channels = new ArrayList<Channel>();
+            for (int i = 0; i < listeners; i++) {
+                channels.add(b.bind(PORT).sync().channel());
+            }
+            System.out.println("Server started: http://127.0.0.1:" + PORT + '/'
+                    + " (" + (epoll ? "epoll" : "nio") + ", " + listeners + " listener(s))");
+            cacheWarmer.started();
 
-            ch.closeFuture().sync();
+            for (Channel ch : channels) {
+                ch.closeFuture().sync();
+            }
         } finally {
             bossGroup.shutdownGracefully();
-            workerGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully().syncUninterruptibly();
+            initializer.handler().close();
+        }
+    }
+
+    private static boolean useEpoll() {
+        if ("nio".equals(TRANSPORT)) {
+            return false;
+        }
+        if (Epoll.isAvailable()) {
+            return true;
+        }
+        if ("epoll".equals(TRANSPORT)) {
+            System.out.println("Native epoll transport is not available, falling back to NIO: " + Epoll.unavailabilityCause());
         }
+        return false;
     }
 }
@@ -14,263 +14,785 @@
  * under the License.
  */
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.router.RouteResult;
 import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedFile;
+import io.netty.util.AsciiString;
+import io.netty.util.AttributeKey;
 import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.internal.logging.InternalLogger;
+import io.netty.util.internal.logging.InternalLoggerFactory;
 
-import javax.activation.MimetypesFileTypeMap;
-import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 @ChannelHandler.Sharable
-public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpRequest> {
+public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpObject> {
 
     public static final String PUBLIC_DIR = HttpRouterServer.PUBLIC_DIR;
     public static final boolean FILE_MEMORY_CACHING = HttpRouterServer.FILE_MEMORY_CACHING;
-    public static final long MEMORY_CACHE_EXPIRES_IN_MS = HttpRouterServer.MEMORY_CACHE_EXPIRES_IN_MS;
-    public static final int HTTP_CACHE_SECONDS = 60;
+    public static final boolean COMPRESSION = HttpRouterServer.COMPRESSION;
+    public static final long SENDFILE_THRESHOLD_BYTES = HttpRouterServer.SENDFILE_THRESHOLD_BYTES;
+    public static final long MMAP_THRESHOLD_BYTES = HttpRouterServer.MMAP_THRESHOLD_BYTES;
+    public static final int HTTP_CACHE_SECONDS = HttpRouterServer.CACHE_MAX_AGE_SECONDS;
+    public static final boolean FINGERPRINTS = HttpRouterServer.FINGERPRINTS;
     public static final String HTTP_DATE_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
     public static final String HTTP_DATE_GMT_TIMEZONE = "GMT";
+    private static final AttributeKey<PendingLoad> PENDING_LOAD = AttributeKey.valueOf("pendingLoad");
+    private static final InternalLogger log = InternalLoggerFactory.getInstance(HttpRouterServerHandler.class);
+    private static final String NOT_ROUTED = "none"; // metrics route label of requests rejected before routing
+    private static final CharSequence CACHE_CONTROL_VALUE = AsciiString.cached("private, max-age=" + HTTP_CACHE_SECONDS);
+    // fingerprinted URL, its content never changes
+    private static final CharSequence IMMUTABLE_CACHE_CONTROL_VALUE = AsciiString.cached("public, max-age=31536000, immutable");
 
     private final Router<String> router;
-    public HashMap<String, cachedStringFile> stringCache = new HashMap<String, cachedStringFile>();
-    public HashMap<String, cachedByteArray> byteCache = new HashMap<String, cachedByteArray>();
+    public final FileCache<CachedFile> fileCache = new FileCache<CachedFile>(HttpRouterServer.MEMORY_CACHE_MAX_BYTES,
+            new FileCache.RemovalListener<CachedFile>() {
+                @Override
+                public void onRemoval(String key, CachedFile value) {
+                    value.release();
+                }
+            });
+    public final FileIndex fileIndex = new FileIndex(PUBLIC_DIR, new FileIndex.ChangeListener() {
+        @Override
+        public void onChange(String pathString) {
+            fileCache.remove(pathString);
+            if (pathString.endsWith(".gz")) { // precompressed sibling of a cached file
+                fileCache.remove(pathString.substring(0, pathString.length() - 3));
+            }
+        }
+    });
+    public final ServerMetrics metrics = new ServerMetrics(fileCache);
+    // one record per answered request, written by a background thread, null with -DaccessLog=off
+    public final AccessLog accessLog = "off".equals(HttpRouterServer.ACCESS_LOG) ? null
+            : new AccessLog(HttpRouterServer.ACCESS_LOG, "json".equals(HttpRouterServer.ACCESS_LOG_FORMAT),
+                    HttpRouterServer.ACCESS_LOG_MAX_BYTES, HttpRouterServer.ACCESS_LOG_FILES, HttpRouterServer.ACCESS_LOG_BUFFER, metrics);
+    // requests per file for the hotness snapshot, null unless -Dpreload=true
+    public final CacheWarmer.AccessCounts accessCounts = HttpRouterServer.PRELOAD ? new CacheWarmer.AccessCounts() : null;
+    // cache misses are read here, bounded queue, null to read on the event loop
+    final ThreadPoolExecutor fileIoExecutor = HttpRouterServer.FILE_IO_THREADS <= 0 ? null
+            : new ThreadPoolExecutor(HttpRouterServer.FILE_IO_THREADS, HttpRouterServer.FILE_IO_THREADS, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(HttpRouterServer.FILE_IO_QUEUE), new DefaultThreadFactory("file-io", true));
+    // requests and disk reads per client address, null unless -DrateLimit is set
+    private final RateLimiter rateLimiter;
+    // misses being read on fileIoExecutor by path, later misses on the same path join the load
+    private final ConcurrentHashMap<String, FileLoad> loadsInFlight = new ConcurrentHashMap<String, FileLoad>();
     public HttpRouterServerHandler(Router<String> router) {
+        this(router, HttpRouterServer.RATE_LIMIT <= 0 ? null
+                : new RateLimiter(HttpRouterServer.RATE_LIMIT, HttpRouterServer.RATE_BURST,
+                        HttpRouterServer.MISS_RATE_LIMIT, HttpRouterServer.MISS_RATE_BURST, HttpRouterServer.RATE_LIMIT_TABLE));
+    }
+
+    HttpRouterServerHandler(Router<String> router, RateLimiter rateLimiter) {
         this.router = router;
+        this.rateLimiter = rateLimiter;
+        fileIndex.start(HttpRouterServer.FILE_WATCH_SERVICE, HttpRouterServer.FILE_WATCH_POLL_MS);
+    }
+
+    /**
+     * Stops the file watcher, flushes the access log and stops the file I/O threads.
+     * Called once the event loops that use this handler are shut down.
+     */
+    public void close() {
+        fileIndex.stop();
+        if (accessLog != null) {
+            accessLog.stop();
+        }
+        if (fileIoExecutor != null) {
+            fileIoExecutor.shutdown();
+        }
+    }
+
+    @Override
+    public void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+        // GET has no body, LastHttpContent after the request is dropped here
+        if (!(msg instanceof HttpRequest)) {
+            return;
+        }
+        HttpRequest req = (HttpRequest) msg;
+
+        // a file is being read for an earlier request, or the client is not taking its responses:
+        // answer in order when the file is written / the channel is writable again
+        PendingLoad pending = ctx.channel().attr(PENDING_LOAD).get();
+        if (pending != null && pending.loading || !ctx.channel().isWritable()) {
+            pendingLoad(ctx).queued.add(ReferenceCountUtil.retain(req));
+            return;
+        }
+        serve(ctx, req);
+    }
+
+    /**
+     * A client that does not read its responses is not served nor read from: above the high write
+     * watermark requests already decoded (pipelined) wait in PendingLoad and reading stops, below the
+     * low one they are answered and reading resumes. Chunked files (ChunkedWriteHandler) also wait for
+     * writability, so outbound memory per connection stays around the high watermark plus one response.
+     */
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable() && !isLoading(ctx)) {
+            PendingLoad pending = ctx.channel().attr(PENDING_LOAD).get();
+            if (pending != null) {
+                serveQueued(ctx, pending);
+            }
+        }
+        ctx.channel().config().setAutoRead(ctx.channel().isWritable() && !isLoading(ctx));
+        super.channelWritabilityChanged(ctx);
     }
 
     @Override
-    public void channelRead0(ChannelHandlerContext ctx, HttpRequest req) {
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        PendingLoad pending = ctx.channel().attr(PENDING_LOAD).get();
+        if (pending != null) {
+            HttpRequest queued;
+            while ((queued = pending.queued.poll()) != null) {
+                ReferenceCountUtil.release(queued);
+            }
+        }
+        super.channelInactive(ctx);
+    }
+
+    private void serve(ChannelHandlerContext ctx, HttpRequest req) {
+        long start = System.nanoTime();
+
+        // 429 if the client is over its request rate
+        if (rateLimiter != null && rejectOverLimit(ctx, req, false)) {
+            metrics.requestServed(NOT_ROUTED, System.nanoTime() - start);
+            return;
+        }
 
         // 405 if request is not GET
-        if (req.getMethod() != HttpMethod.GET) {
-            HttpResponse res = HttpMethodIsNotGet();
+        if (req.method() != HttpMethod.GET) {
+            HttpResponse res = HttpMethodIsNotGet(req.method() == HttpMethod.HEAD);
             flushResponse(ctx, req, res);
+            metrics.requestServed(NOT_ROUTED, System.nanoTime() - start);
+            return;
         }
 
-        RouteResult<String> routeResult = router.route(req.getMethod(), req.getUri());
-        Map<String, String> paramMap = null;
-        String paramPathFirst = null;
-        if (routeResult.pathParams().isEmpty()) {
-            paramMap = null;
-        } else {
-            paramMap = (Map<String, String>) routeResult.pathParams();
-            paramPathFirst = paramMap.get("id");
+        RouteResult<String> routeResult = router.route(req.method(), req.uri());
+        route(ctx, req, routeResult, start);
+        if (!isLoading(ctx)) { // else counted when the load completes
+            metrics.requestServed(routeResult.target(), System.nanoTime() - start);
         }
+    }
 
+    private void route(ChannelHandlerContext ctx, HttpRequest req, RouteResult<String> routeResult, long start) {
         // 400 if any query params
         if (!routeResult.queryParams().isEmpty()) {
             HttpResponse res = invalidQueryParams();
             flushResponse(ctx, req, res);
+            return;
+        }
+
+        // URI /metrics
+        if (routeResult.target() == "metrics") {
+            flushResponse(ctx, req, metricsResponse());
+            return;
         }
 
         // URI /public/*
         if (routeResult.target() == "public") {
-            String pathToFile = PUBLIC_DIR + paramPathFirst;
-
-            // 304 if have header IF_MODIFIED_SINCE and file was not mod, also checking FileNotFound
-            HttpResponse try304 = checkNotModifiedHeaderEtagAndRespond304(req, paramPathFirst);
-            if (try304 != null) {
-                flushResponse(ctx, req, try304);
+            String pathToFile = PUBLIC_DIR + routeResult.pathParams().get("id");
+
+            // 404, metadata of the file is looked up once for the whole request
+            FileIndex.FileMetadata file = fileIndex.get(pathToFile);
+            if (file == null && FINGERPRINTS) { // app.<fingerprint>.js -> app.js
+                String unfingerprinted = FileIndex.withoutFingerprint(pathToFile);
+                if (unfingerprinted != null) {
+                    file = fileIndex.get(unfingerprinted);
+                }
             }
-
-            // public/*.jpg *.png
-            if (getExtension(paramPathFirst).equals("jpg") || getExtension(paramPathFirst).equals("png")) {
-                HttpResponse res = imgResponse(req, router, pathToFile);
-                flushResponse(ctx, req, res);
+            if (file == null) {
+                flushResponse(ctx, req, FileNotFound());
+                return;
             }
 
-            //public/*.js
-            if (getExtension(paramPathFirst).equals("js")) {
-                HttpResponse res = jsResponse(req, router, pathToFile);
-                flushResponse(ctx, req, res);
+            // 304 if have header IF_MODIFIED_SINCE or IF_NONE_MATCH and file was not mod
+            HttpResponse try304 = checkNotModifiedHeaderEtagAndRespond304(req, file);
+            if (try304 != null) {
+                flushResponse(ctx, req, try304);
+                return;
             }
-
-            //public/*.css
-            if (getExtension(paramPathFirst).equals("css")) {
-                HttpResponse res = cssResponse(req, router, pathToFile);
-                flushResponse(ctx, req, res);
+            if (accessCounts != null) {
+                accessCounts.record(file.pathString);
             }
 
-            // public/*.*
-            HttpResponse res = htmlResponse(req, router);
-            flushResponse(ctx, req, res);
-
+            FileKind kind = FileKind.of(file.contentType);
+            // only US-ASCII acceptable: text/* with other bytes gets 406, it is never transcoded with losses
+            boolean usAscii = kind.acceptCharset && req.headers().contains("Accept-Charset", "US-ASCII", true);
+            serveFile(ctx, req, file, kind, usAscii, start);
+            return;
+        }
 
-        } else { // != "public"
-//          HttpResponse res = createResponse(req, router);
-            HttpResponse res = blankResponse();
-            flushResponse(ctx, req, res);
+        // != "public"
+        HttpResponse res = blankResponse();
+        flushResponse(ctx, req, res);
+    }
 
-//        if (routeResult.target() == "base64") {
-//            HttpResponse res = base64Response(req, router, "public/encodedImage.txt");
-//            flushResponse(ctx, req, res);
-//        }
-//        if (routeResult.target() == "image") {
-//            HttpResponse res = imgResponse(req, router, "public/encodedImage.txt");
-//            flushResponse(ctx, req, res);
-//        }
+    /**
+     * Writes the one response for an existing file, by size and kind:
+     * large images go from page cache to socket (sendfile), cache misses are read on fileIoExecutor,
+     * cached files are written as one prepared buffer, or as a FullHttpResponse where that can not be used.
+     */
+    private void serveFile(ChannelHandlerContext ctx, HttpRequest req, FileIndex.FileMetadata file,
+                           FileKind kind, boolean usAscii, long start) {
+        boolean sendfile = file.size > SENDFILE_THRESHOLD_BYTES;
+        // one lookup decides hit or miss, a hit is retained so an eviction meanwhile does not turn it into a read here
+        CachedFile cached = sendfile ? null : retainedCachedFile(file);
+        boolean miss = cached == null;
+
+        // 429 if the client is over its disk read rate, cache hits have the larger request budget only
+        if (miss && rateLimiter != null && rejectOverLimit(ctx, req, true)) {
+            return;
+        }
+        if (accessLog != null) {
+            AccessLogHandler.cacheStatus(ctx, sendfile ? AccessLog.BYPASS : miss ? AccessLog.MISS : AccessLog.HIT);
         }
 
+        if (sendfile) {
+            sendFileResponse(ctx, req, file, isImmutable(req, file));
+            return;
+        }
 
+        if (miss) {
+            // the file is read on the I/O executor, this event loop keeps serving other channels
+            if (fileIoExecutor != null) {
+                loadAndRespond(ctx, req, file, kind.text, usAscii, start);
+                return;
+            }
+            try {
+                cached = readAndCache(file, kind.text); // -DfileIoThreads=0
+            } catch (IOException e) {
+                log.warn("Can not read " + file.pathString, e);
+                flushResponse(ctx, req, internalServerError());
+                return;
+            }
+            if (cached == null) { // deleted meanwhile
+                flushResponse(ctx, req, FileNotFound());
+                return;
+            }
+        }
+        try {
+            writeFileResponse(ctx, req, cached, kind.text, usAscii);
+        } finally {
+            cached.release();
+        }
+    }
+    private void writeFileResponse(ChannelHandlerContext ctx, HttpRequest req, CachedFile cached, boolean text, boolean usAscii) {
+        // No transcoded US-ASCII copy is kept: it could only replace every other character with '?'
+        // and would double the cache memory of such files for a header clients hardly send.
+        // The bytes on disk are served when they are ASCII already, anything else is not acceptable.
+        if (usAscii && !cached.ascii) {
+            flushResponse(ctx, req, notAcceptable());
+            return;
+        }
+        // fingerprinted URLs are fetched once per client, their headers are not pre-serialized
+        boolean immutable = isImmutable(req, cached.metadata);
+        ChannelFuture future;
+        if (!immutable && canWritePrepared(ctx, req)) {
+            future = writePrepared(ctx, req, cached, acceptedEncoding(req, text));
+        } else {
+            future = flushResponse(ctx, req, fileResponse(req, cached, text, immutable));
+        }
+        if (cached.isMapped()) {
+            future.addListener(new TruncatedMappingCheck(cached));
+        }
     }
 
-    private HttpResponse stringFileResponse(HttpRequest req, Router<String> router, String pathString) {
-        String content = null;
-        content = checkStringContentInCache(req, stringCache);
-        if (content == null) {
-            content = readStringFile(pathString);
-            // 404 File Not Found
-            if (content == null) {
-                return FileNotFound();
+    /**
+     * A write of a mapping fails if the file was truncated in place after it was mapped (before
+     * the watcher reports it). The entry is then evicted at once, the next request reads the file
+     * again and, since the index has seen it rewritten in place by then, copies it.
+     * Most failures are clients going away, the file size is checked on fileIoExecutor.
+     */
+    private final class TruncatedMappingCheck implements ChannelFutureListener, Runnable {
+        private final CachedFile cached; // compared by identity only, the write's reference is gone by then
+        private final long mappedBytes;
+
+        TruncatedMappingCheck(CachedFile cached) {
+            this.cached = cached;
+            this.mappedBytes = cached.variant(CachedFile.IDENTITY).content.capacity();
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (future.isSuccess()) {
+                return;
+            }
+            if (future.cause() instanceof InternalError || fileIoExecutor == null) {
+                run();
+                return;
+            }
+            try {
+                fileIoExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // busy or stopped, the watcher still invalidates the entry
             }
         }
 
+        @Override
+        public void run() {
+            try {
+                if (Files.size(Paths.get(cached.metadata.pathString)) >= mappedBytes) {
+                    return;
+                }
+            } catch (IOException e) {
+                // gone, evicted like a truncated one
+            }
+            if (fileCache.remove(cached.metadata.pathString, cached)) {
+                log.warn(cached.metadata.pathString + " truncated while mapped, evicted");
+            }
+        }
+    }
+    private static HttpResponse fileResponse(HttpRequest req, CachedFile cached, boolean text, boolean immutable) {
+        CachedFile.Variant variant = cached.variant(acceptedEncoding(req, text));
+        ByteRanges ranges = requestedRanges(req, cached.metadata, variant.etag, variant.content.readableBytes());
+        if (ranges != null) {
+            return rangeResponse(cached.metadata, variant, ranges, immutable);
+        }
         FullHttpResponse res = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(content, CharsetUtil.UTF_8)
+                HttpVersion.HTTP_1_1, HttpResponseStatus.OK, variant.content.duplicate().retain()
         );
 
-        setDateAndCacheHeaders(res, pathString);
-        setContentTypeHeader(res, pathString);
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
-        if (FILE_MEMORY_CACHING) stringCache.put(req.getUri(), new cachedStringFile(req.getUri(), content));
-
+        setContentTypeHeader(res, cached.metadata);
+        setDateAndCacheHeaders(res, cached.metadata, immutable);
+        res.headers().set(HttpHeaderNames.ETAG, variant.etag);
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        if (variant.contentEncoding != null) {
+            res.headers().set(HttpHeaderNames.CONTENT_ENCODING, variant.contentEncoding);
+        }
+        if (variant.varyAcceptEncoding) {
+            res.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
         return res;
     }
-    private HttpResponse cssResponse(HttpRequest req, Router<String> router, String pathString) {
-        return stringFileResponse(req, router, pathString);
-    }
-    private HttpResponse jsResponse(HttpRequest req, Router<String> router, String pathString) {
-        return stringFileResponse(req, router, pathString);
+    private static int acceptedEncoding(HttpRequest req, boolean text) {
+        return text && COMPRESSION ? AcceptEncoding.choose(req.headers().get(HttpHeaderNames.ACCEPT_ENCODING)) : CachedFile.IDENTITY;
     }
-    private HttpResponse htmlResponse(HttpRequest req, Router<String> router) {
 
-        RouteResult<String> routeResult = router.route(req.getMethod(), req.getUri());
-        StringBuilder pathToFileSB = new StringBuilder();
-        pathToFileSB.append(PUBLIC_DIR);
-
-        if (routeResult.pathParams().isEmpty()) {
-            pathToFileSB.append("index.html");
+    /**
+     * True if the cached 200 response can be written as one pre-serialized buffer (PreparedResponse).
+     */
+    private static boolean canWritePrepared(ChannelHandlerContext ctx, HttpRequest req) {
+        // partial responses are built from the cached buffer by fileResponse
+        return ctx.pipeline().get(PreparedResponseEncoder.class) != null && !req.headers().contains(HttpHeaderNames.RANGE);
+    }
+    private ChannelFuture writePrepared(ChannelHandlerContext ctx, HttpRequest req, CachedFile cached, int encoding) {
+        boolean keepAlive = HttpUtil.isKeepAlive(req);
+        PreparedResponse res = cached.newResponse(encoding, keepAlive);
+        metrics.responseWritten(HttpResponseStatus.OK.code(), cached.variant(encoding).content.readableBytes());
+        if (keepAlive) {
+            return ctx.writeAndFlush(res);
         } else {
-            Map<String, String> paramMap = (Map<String, String>) routeResult.pathParams();
-            String paramFirst = paramMap.get("id");
-            pathToFileSB.append(paramFirst);
+            return ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
         }
+    }
 
-        String content = null;
-        content = checkStringContentInCache(req, stringCache);
-        if (content == null) {
-            content = readStringFile(pathToFileSB.toString());
-            // 404 File Not Found
-            if (content == null) {
-                return FileNotFound();
+    /**
+     * Reads the file on fileIoExecutor and writes the response back on the channel's event loop.
+     * The channel stops reading meanwhile, requests already decoded wait in PendingLoad,
+     * so responses stay in request order. A full I/O queue is answered with 503.
+     *
+     * Concurrent misses on the same file are coalesced: the first one submits the read,
+     * the others join its FileLoad and get the same CachedFile when it is done.
+     */
+    private void loadAndRespond(ChannelHandlerContext ctx, HttpRequest req, FileIndex.FileMetadata file,
+                                boolean text, boolean usAscii, long start) {
+        PendingLoad pending = pendingLoad(ctx);
+        pending.loading = true;
+        ReferenceCountUtil.retain(req);
+        LoadWaiter waiter = new LoadWaiter(ctx, req, text, usAscii, start);
+        for (;;) {
+            FileLoad load = new FileLoad();
+            FileLoad inFlight = loadsInFlight.putIfAbsent(file.pathString, load);
+            if (inFlight == null) {
+                if (!startLoad(file, load, waiter)) {
+                    pending.loading = false;
+                    flushResponse(ctx, req, serviceUnavailable());
+                    ReferenceCountUtil.release(req);
+                    return;
+                }
+                break;
+            }
+            if (inFlight.join(waiter)) {
+                metrics.loadCoalesced();
+                break;
+            }
+            // inFlight completed between putIfAbsent and join, it is no longer in the map
+        }
+        ctx.channel().config().setAutoRead(false);
+    }
+    private boolean startLoad(final FileIndex.FileMetadata file, final FileLoad load, final LoadWaiter owner) {
+        try {
+            fileIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    CachedFile cached = null;
+                    boolean failed = true;
+                    try {
+                        cached = readAndCache(file, owner.text);
+                        failed = false;
+                    } catch (IOException e) {
+                        log.warn("Can not read " + file.pathString, e);
+                    } finally { // a failed read still answers every waiter, with 500 (404 if the file is gone)
+                        loadsInFlight.remove(file.pathString, load);
+                        for (LoadWaiter waiter : load.complete()) {
+                            if (cached != null) {
+                                cached.retain();
+                            }
+                            loadedLater(waiter, cached, failed);
+                        }
+                        loadedLater(owner, cached, failed);
+                    }
+                }
+            });
+            metrics.loadStarted();
+            return true;
+        } catch (RejectedExecutionException e) {
+            loadsInFlight.remove(file.pathString, load);
+            for (final LoadWaiter waiter : load.complete()) {
+                try {
+                    waiter.ctx.executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushResponse(waiter.ctx, waiter.req, serviceUnavailable());
+                            ReferenceCountUtil.release(waiter.req);
+                            loadDone(waiter.ctx);
+                        }
+                    });
+                } catch (RejectedExecutionException closing) {
+                    ReferenceCountUtil.release(waiter.req);
+                }
+            }
+            return false;
+        }
+    }
+    private void loadedLater(final LoadWaiter waiter, final CachedFile cached, final boolean failed) {
+        try {
+            waiter.ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    loaded(waiter, cached, failed);
+                }
+            });
+        } catch (RejectedExecutionException e) { // event loop is shutting down
+            if (cached != null) {
+                cached.release();
+            }
+            ReferenceCountUtil.release(waiter.req);
+        }
+    }
+    private void loaded(LoadWaiter waiter, CachedFile cached, boolean failed) {
+        ChannelHandlerContext ctx = waiter.ctx;
+        HttpRequest req = waiter.req;
+        try {
+            if (cached == null) {
+                flushResponse(ctx, req, failed ? internalServerError() : FileNotFound());
+            } else {
+                writeFileResponse(ctx, req, cached, waiter.text, waiter.usAscii);
             }
+        } finally {
+            if (cached != null) {
+                cached.release();
+            }
+            ReferenceCountUtil.release(req);
+        }
+        metrics.requestServed("public", System.nanoTime() - waiter.start);
+        loadDone(ctx);
+    }
+    private void loadDone(ChannelHandlerContext ctx) {
+        PendingLoad pending = ctx.channel().attr(PENDING_LOAD).get();
+        pending.loading = false;
+        serveQueued(ctx, pending);
+        if (!pending.loading) {
+            ctx.channel().config().setAutoRead(ctx.channel().isWritable());
         }
+    }
+    private void serveQueued(ChannelHandlerContext ctx, PendingLoad pending) {
+        // answer requests that came in meanwhile, until one of them needs another load
+        // or the responses fill the outbound buffer
+        HttpRequest next;
+        while (!pending.loading && ctx.channel().isWritable() && (next = pending.queued.poll()) != null) {
+            try {
+                serve(ctx, next);
+            } finally {
+                ReferenceCountUtil.release(next);
+            }
+        }
+    }
+    private static PendingLoad pendingLoad(ChannelHandlerContext ctx) {
+        PendingLoad pending = ctx.channel().attr(PENDING_LOAD).get();
+        if (pending == null) {
+            pending = new PendingLoad();
+            ctx.channel().attr(PENDING_LOAD).set(pending);
+        }
+        return pending;
+    }
+    private static boolean isLoading(ChannelHandlerContext ctx) {
+        PendingLoad pending = ctx.channel().attr(PENDING_LOAD).get();
+        return pending != null && pending.loading;
+    }
 
-        boolean isCharsetUSASCII = req.headers().contains("Accept-Charset", "US-ASCII", true);
+    private void sendFileResponse(ChannelHandlerContext ctx, HttpRequest req, FileIndex.FileMetadata file, boolean immutable) {
+        RandomAccessFile raf;
+        long fileLength;
+        try {
+            raf = new RandomAccessFile(file.pathString, "r");
+            fileLength = raf.length();
+        } catch (IOException e) {
+            flushResponse(ctx, req, FileNotFound());
+            return;
+        }
 
-        FullHttpResponse res = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(content.toString(), isCharsetUSASCII? CharsetUtil.US_ASCII : CharsetUtil.UTF_8)
-        );
+        ByteRanges ranges = requestedRanges(req, file, file.etag(), fileLength);
+        if (ranges == ByteRanges.UNSATISFIABLE) {
+            closeQuietly(raf);
+            flushResponse(ctx, req, rangeNotSatisfiable(fileLength));
+            return;
+        }
 
+        HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                ranges == null ? HttpResponseStatus.OK : HttpResponseStatus.PARTIAL_CONTENT);
+        setContentTypeHeader(res, file);
+        setDateAndCacheHeaders(res, file, immutable);
+        res.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        CharSequence contentType = file.contentType;
+        if (ranges == null) {
+            res.headers().set(HttpHeaderNames.CONTENT_LENGTH, fileLength);
+        } else if (ranges.count() == 1) {
+            res.headers().set(HttpHeaderNames.CONTENT_RANGE, ranges.contentRange(0, fileLength));
+            res.headers().set(HttpHeaderNames.CONTENT_LENGTH, ranges.length(0));
+        } else {
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, ByteRanges.MULTIPART_CONTENT_TYPE);
+            res.headers().set(HttpHeaderNames.CONTENT_LENGTH, ranges.multipartLength(contentType, fileLength));
+        }
 
-        setDateAndCacheHeaders(res, pathToFileSB.toString());
-        setContentTypeHeader(res, pathToFileSB.toString());
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        boolean keepAlive = HttpUtil.isKeepAlive(req);
+        if (keepAlive) {
+            res.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
+        }
+        ctx.write(res);
+        metrics.responseWritten(res.status().code(), HttpUtil.getContentLength(res));
 
-        if (FILE_MEMORY_CACHING) stringCache.put(req.getUri(), new cachedStringFile(req.getUri(), content));
-        return res;
+        try {
+            if (ranges == null) {
+                writeFilePart(ctx, raf, 0, fileLength);
+            } else if (ranges.count() == 1) {
+                writeFilePart(ctx, raf, ranges.start(0), ranges.length(0));
+            } else {
+                for (int i = 0; i < ranges.count(); i++) {
+                    ctx.write(Unpooled.copiedBuffer(ranges.partHeader(i, contentType, fileLength), CharsetUtil.US_ASCII));
+                    // every part needs its own handle, a region closes its file when it is written
+                    writeFilePart(ctx, i == 0 ? raf : new RandomAccessFile(file.pathString, "r"), ranges.start(i), ranges.length(i));
+                }
+                ctx.write(Unpooled.copiedBuffer(ByteRanges.closingDelimiter(), CharsetUtil.US_ASCII));
+            }
+        } catch (IOException e) { // logged by BadClientSilencer, which closes the channel
+            ctx.fireExceptionCaught(e);
+            return;
+        }
+        ChannelFuture lastContentFuture = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+
+        if (!keepAlive) {
+            lastContentFuture.addListener(ChannelFutureListener.CLOSE);
+        }
     }
-    private HttpResponse imgResponse(HttpRequest req, Router<String> router, String pathString) {
 
-        RouteResult<String> routeResult = router.route(req.getMethod(), req.getUri());
+    private static void writeFilePart(ChannelHandlerContext ctx, RandomAccessFile raf, long start, long length) throws IOException {
+        if (ctx.pipeline().get(SslHandler.class) == null && !(ctx.channel() instanceof Http2StreamChannel)) {
+            // SSL not enabled - can use zero-copy file transfer.
+            ctx.write(new DefaultFileRegion(raf.getChannel(), start, length));
+        } else {
+            // SSL enabled or HTTP/2 stream (DATA frames) - cannot use zero-copy file transfer.
+            ctx.write(new ChunkedFile(raf, start, length, 8192));
+        }
+    }
 
-        byte[] content = null;
-        content = checkByteArrayContentInCache(req, byteCache);
-        if (content == null) {
-            try {
-                content = Files.readAllBytes(Paths.get(pathString));
-            } catch (NoSuchFileException e) {
-                return FileNotFound();
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Ranges to serve, or null to serve the whole file: no Range header, If-Range does not match
+     * the current validator, or malformed Range. An If-Range ETag is compared strongly, with the ETag
+     * of the variant being served, a weak one never matches.
+     */
+    private static ByteRanges requestedRanges(HttpRequest req, FileIndex.FileMetadata file, String etag, long length) {
+        String range = req.headers().get(HttpHeaderNames.RANGE);
+        if (range == null) {
+            return null;
+        }
+        String ifRange = req.headers().get(HttpHeaderNames.IF_RANGE);
+        if (ifRange != null && (file == null || !(ifRange.equals(etag) || ifRange.equals(file.lastModifiedString)))) {
+            return null;
+        }
+        return ByteRanges.parse(range, length);
+    }
+
+    /**
+     * 206 response with slices of the cached buffer, single part or multipart/byteranges.
+     */
+    private static HttpResponse rangeResponse(FileIndex.FileMetadata file, CachedFile.Variant variant, ByteRanges ranges, boolean immutable) {
+        ByteBuf content = variant.content;
+        long total = content.readableBytes();
+        if (ranges == ByteRanges.UNSATISFIABLE) {
+            return rangeNotSatisfiable(total);
+        }
+
+        FullHttpResponse res;
+        if (ranges.count() == 1) {
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT,
+                    content.slice((int) ranges.start(0), (int) ranges.length(0)).retain());
+            setContentTypeHeader(res, file);
+            res.headers().set(HttpHeaderNames.CONTENT_RANGE, ranges.contentRange(0, total));
+        } else {
+            ByteBuf[] parts = new ByteBuf[ranges.count() * 2 + 1];
+            for (int i = 0; i < ranges.count(); i++) {
+                parts[2 * i] = Unpooled.copiedBuffer(ranges.partHeader(i, file.contentType, total), CharsetUtil.US_ASCII);
+                parts[2 * i + 1] = content.slice((int) ranges.start(i), (int) ranges.length(i)).retain();
             }
+            parts[parts.length - 1] = Unpooled.copiedBuffer(ByteRanges.closingDelimiter(), CharsetUtil.US_ASCII);
+            res = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT,
+                    Unpooled.wrappedBuffer(parts));
+            res.headers().set(HttpHeaderNames.CONTENT_TYPE, ByteRanges.MULTIPART_CONTENT_TYPE);
+        }
+        setDateAndCacheHeaders(res, file, immutable);
+        res.headers().set(HttpHeaderNames.ETAG, variant.etag);
+        res.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
+        if (variant.contentEncoding != null) {
+            res.headers().set(HttpHeaderNames.CONTENT_ENCODING, variant.contentEncoding);
+        }
+        if (variant.varyAcceptEncoding) {
+            res.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
         }
+        return res;
+    }
 
+    private static HttpResponse rangeNotSatisfiable(long total) {
         FullHttpResponse res = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(content)
+                HttpVersion.HTTP_1_1, HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, Unpooled.buffer(0)
         );
-
-        setContentTypeHeader(res, pathString);
-        setDateAndCacheHeaders(res, pathString);
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
-        if (FILE_MEMORY_CACHING) byteCache.put(req.getUri(), new cachedByteArray(req.getUri(), content));
-
+        res.headers().set(HttpHeaderNames.CONTENT_RANGE, ByteRanges.unsatisfiedContentRange(total));
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
         return res;
     }
 
-    public HttpResponse checkNotModifiedHeaderEtagAndRespond304(HttpRequest req, String pathToFile) {
-
-        String ifModifiedSince = req.headers().get(HttpHeaders.Names.IF_MODIFIED_SINCE);
-        String ifNoneMatch = req.headers().get(HttpHeaders.Names.IF_NONE_MATCH);
-
-        File file = new File("public/" + pathToFile);
-        if (file.isHidden() || !file.exists()) {
-            return FileNotFound();
+    private static void closeQuietly(RandomAccessFile raf) {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            // ignore
         }
+    }
 
-        Date fileModifDate = new Date(file.lastModified());
+    public HttpResponse checkNotModifiedHeaderEtagAndRespond304(HttpRequest req, FileIndex.FileMetadata file) {
 
-        SimpleDateFormat gmtDateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        gmtDateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
-        String ifMatchFileLastModifString = gmtDateFormatter.format(fileModifDate);
+        String ifModifiedSince = req.headers().get(HttpHeaderNames.IF_MODIFIED_SINCE);
+        String ifNoneMatch = req.headers().get(HttpHeaderNames.IF_NONE_MATCH);
 
-        String fileEtag = null;
-        try {fileEtag = Base64.getEncoder().encodeToString(ifMatchFileLastModifString.getBytes("utf-8")).toLowerCase();} catch (UnsupportedEncodingException e) {};
+        String ifMatchFileLastModifString = file.lastModifiedString;
 
-        // If-None-Match part
-        if (ifNoneMatch != null && !fileEtag.isEmpty()) {
-            if (ifNoneMatch.equals(fileEtag)) {
-                FullHttpResponse res = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.buffer(0)
-                );
-                return res;
-            }
+        // If-None-Match part, when present If-Modified-Since is not looked at
+        if (ifNoneMatch != null) {
+            String matched = matchingEtag(ifNoneMatch, file);
+            return matched == null ? null : notModified(req, file, matched);
         }
 
         // If-Modified-Since part
         if (ifModifiedSince != null && !ifModifiedSince.isEmpty()) {
             if (ifMatchFileLastModifString.equals(ifModifiedSince)) {
-                FullHttpResponse res = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.buffer(0)
-                );
-                return res;
+                return notModified(req, file, file.etag());
             }
         }
         return null;
 
     }
-    private static HttpResponse HttpMethodIsNotGet() {
+    /**
+     * Weak comparison of If-None-Match ("*" or a list of entity tags, W/ ignored) with the ETags of the file
+     * and its variants. Returns the matching tag, or null.
+     */
+    private static String matchingEtag(String ifNoneMatch, FileIndex.FileMetadata file) {
+        int i = 0;
+        int length = ifNoneMatch.length();
+        while (i < length) {
+            char c = ifNoneMatch.charAt(i);
+            if (c == ' ' || c == '\t' || c == ',') {
+                i++;
+                continue;
+            }
+            if (c == '*') { // any current representation, there is one even if it is not hashed yet
+                return file.etag() == null ? "*" : file.etag();
+            }
+            if (ifNoneMatch.startsWith("W/", i)) {
+                i += 2;
+            }
+            int end;
+            if (i < length && ifNoneMatch.charAt(i) == '"') {
+                end = ifNoneMatch.indexOf('"', i + 1);
+                end = end < 0 ? length : end + 1;
+            } else { // not quoted, compared as it is up to the next comma
+                end = ifNoneMatch.indexOf(',', i);
+                end = end < 0 ? length : end;
+            }
+            String tag = ifNoneMatch.substring(i, end).trim();
+            if (file.matches(tag)) {
+                return tag;
+            }
+            i = end;
+        }
+        return null;
+    }
+    /**
+     * 304 with the validator and the caching headers a 200 would have, Vary included:
+     * caches must not answer a request with another Accept-Encoding from it.
+     */
+    private static HttpResponse notModified(HttpRequest req, FileIndex.FileMetadata file, String etag) {
+        FullHttpResponse res = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_MODIFIED, Unpooled.buffer(0)
+        );
+        setDateAndCacheHeaders(res, file, isImmutable(req, file));
+        if (etag != null && !"*".equals(etag)) {
+            res.headers().set(HttpHeaderNames.ETAG, etag);
+        }
+        if (COMPRESSION && MimeTypes.isCompressible(file.contentType)) {
+            res.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
+        return res;
+    }
+    private static HttpResponse HttpMethodIsNotGet(boolean head) {
+        ByteBuf content = Unpooled.copiedBuffer("405 Request method is not GET", CharsetUtil.UTF_8);
+        int contentLength = content.readableBytes();
+        if (head) { // same headers, no body
+            content.release();
+            content = Unpooled.EMPTY_BUFFER;
+        }
         FullHttpResponse res = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED,
-                Unpooled.copiedBuffer("405 Request method is not GET", CharsetUtil.UTF_8)
+                HttpVersion.HTTP_1_1, HttpResponseStatus.METHOD_NOT_ALLOWED, content
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/plain");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/plain");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+        res.headers().set(HttpHeaderNames.ALLOW,          HttpMethod.GET);
 
         return res;
     }
@@ -280,8 +802,20 @@ public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpReq
                 Unpooled.copiedBuffer("404 File not Found", CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/plain");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/plain");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
+
+        return res;
+    }
+    private static HttpResponse notAcceptable() {
+        FullHttpResponse res = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_ACCEPTABLE,
+                Unpooled.copiedBuffer("406 Not Acceptable, the file is not US-ASCII", CharsetUtil.UTF_8)
+        );
+
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/plain");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.VARY,           HttpHeaderNames.ACCEPT_CHARSET);
 
         return res;
     }
@@ -291,179 +825,456 @@ public class HttpRouterServerHandler extends SimpleChannelInboundHandler<HttpReq
                 Unpooled.copiedBuffer("400 Bad request", CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/plain");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/plain");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
 
         return res;
     }
 
-    private static HttpResponse blankResponse() {
+    private HttpResponse metricsResponse() {
         FullHttpResponse res = new DefaultFullHttpResponse(
                 HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer("<html><body><a href='public/index.html'>index.html</a></body></html>", CharsetUtil.UTF_8)
+                Unpooled.copiedBuffer(metrics.prometheusText(), CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/html");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/plain; version=0.0.4; charset=utf-8");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
 
         return res;
     }
-    private static HttpResponse createResponse(HttpRequest req, Router<String> router) {
-        RouteResult<String> routeResult = router.route(req.getMethod(), req.getUri());
-
-        // Display debug info.
-        //
-        // For simplicity of this example, route targets are just simple strings.
-        // But you can make them classes, and here once you get a target class,
-        // you can create an instance of it and dispatch the request to the instance etc.
-        StringBuilder content = new StringBuilder();
-        content.append("router: \n" + router + "\n");
-        content.append("req: " + req + "\n\n");
-        content.append("routeResult: \n");
-        content.append("target: " + routeResult.target() + "\n");
-        content.append("pathParams: " + routeResult.pathParams() + "\n");
-        content.append("queryParams: " + routeResult.queryParams() + "\n\n");
-        content.append("allowedMethods: " + router.allowedMethods(req.getUri()));
 
+    /**
+     * Answers 429 if the client address is over its request (or disk read) budget.
+     * Connections without an IP address (embedded, unix sockets) are not limited.
+     */
+    private boolean rejectOverLimit(ChannelHandlerContext ctx, HttpRequest req, boolean miss) {
+        SocketAddress remote = ctx.channel().remoteAddress();
+        if (!(remote instanceof InetSocketAddress)) {
+            return false;
+        }
+        InetAddress address = ((InetSocketAddress) remote).getAddress();
+        long waitNanos = miss ? rateLimiter.acquireMiss(address) : rateLimiter.acquireRequest(address);
+        if (waitNanos == 0) {
+            return false;
+        }
+        flushResponse(ctx, req, tooManyRequests(waitNanos));
+        return true;
+    }
+    private static HttpResponse tooManyRequests(long waitNanos) {
         FullHttpResponse res = new DefaultFullHttpResponse(
-                HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(content.toString(), CharsetUtil.UTF_8)
+                HttpVersion.HTTP_1_1, HttpResponseStatus.TOO_MANY_REQUESTS,
+                Unpooled.copiedBuffer("429 Too Many Requests", CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/plain");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/plain");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.RETRY_AFTER,    (waitNanos + 999999999L) / 1000000000L); // whole seconds, rounded up
 
         return res;
     }
-    private static HttpResponse base64Response(HttpRequest req, Router<String> router, String pathString) {
 
+    private static HttpResponse serviceUnavailable() {
+        FullHttpResponse res = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.SERVICE_UNAVAILABLE,
+                Unpooled.copiedBuffer("503 Service Unavailable", CharsetUtil.UTF_8)
+        );
 
-        StringBuilder content = new StringBuilder();
-        content.append("<!DOCTYPE html><html><head><title></title></head><body style=\"margin:0; padding: 0\"><img src=\"data:image/jpg;base64,");
-        try {
-            content.append(new String(Files.readAllBytes(Paths.get(pathString))));
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/plain");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.RETRY_AFTER,    1);
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        content.append("\"></body></html>");
+        return res;
+    }
+
+    private static HttpResponse internalServerError() {
+        FullHttpResponse res = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1, HttpResponseStatus.INTERNAL_SERVER_ERROR,
+                Unpooled.copiedBuffer("500 Internal Server Error", CharsetUtil.UTF_8)
+        );
 
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/plain");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
 
+        return res;
+    }
+
+    private static HttpResponse blankResponse() {
         FullHttpResponse res = new DefaultFullHttpResponse(
                 HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(content.toString(), CharsetUtil.UTF_8)
+                Unpooled.copiedBuffer("<html><body><a href='public/index.html'>index.html</a></body></html>", CharsetUtil.UTF_8)
         );
 
-        res.headers().set(HttpHeaders.Names.CONTENT_TYPE,   "text/html");
-        res.headers().set(HttpHeaders.Names.CONTENT_LENGTH, res.content().readableBytes());
+        res.headers().set(HttpHeaderNames.CONTENT_TYPE,   "text/html");
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, res.content().readableBytes());
 
         return res;
-
     }
 
-    private static ChannelFuture flushResponse(ChannelHandlerContext ctx, HttpRequest req, HttpResponse res) {
-        if (!HttpHeaders.isKeepAlive(req)) {
+    private ChannelFuture flushResponse(ChannelHandlerContext ctx, HttpRequest req, HttpResponse res) {
+        metrics.responseWritten(res.status().code(), res instanceof FullHttpResponse ? ((FullHttpResponse) res).content().readableBytes() : 0);
+        if (!HttpUtil.isKeepAlive(req)) {
             return ctx.writeAndFlush(res).addListener(ChannelFutureListener.CLOSE);
         } else {
-            res.headers().set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+            res.headers().set(HttpHeaderNames.CONNECTION, HttpHeaderValues.KEEP_ALIVE);
             return ctx.writeAndFlush(res);
         }
     }
 
-    private static void setDateAndCacheHeaders(HttpResponse response, String pathToFile) {
-
-        File fileToCache = new File(pathToFile);
-
-        SimpleDateFormat dateFormatter = new SimpleDateFormat(HTTP_DATE_FORMAT, Locale.US);
-        dateFormatter.setTimeZone(TimeZone.getTimeZone(HTTP_DATE_GMT_TIMEZONE));
+    private static void setDateAndCacheHeaders(HttpResponse response, FileIndex.FileMetadata fileToCache) {
+        setDateAndCacheHeaders(response, fileToCache, false);
+    }
+    private static void setDateAndCacheHeaders(HttpResponse response, FileIndex.FileMetadata fileToCache, boolean immutable) {
 
         // Date header
-        Calendar time = new GregorianCalendar();
-        response.headers().set("Date", dateFormatter.format(time.getTime()));
+        response.headers().set(HttpHeaderNames.DATE, HttpDateClock.date());
 
         // Add cache headers
-        time.add(Calendar.SECOND, HTTP_CACHE_SECONDS);
-        response.headers().set(HttpHeaders.Names.EXPIRES, dateFormatter.format(time.getTime()));
-        response.headers().set(HttpHeaders.Names.CACHE_CONTROL, "private, max-age=" + HTTP_CACHE_SECONDS);
-
-        response.headers().set(HttpHeaders.Names.LAST_MODIFIED, dateFormatter.format(new Date(fileToCache.lastModified())));
+        if (immutable) {
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, IMMUTABLE_CACHE_CONTROL_VALUE);
+        } else {
+            response.headers().set(HttpHeaderNames.EXPIRES, HttpDateClock.expires());
+            response.headers().set(HttpHeaderNames.CACHE_CONTROL, CACHE_CONTROL_VALUE);
+        }
 
-        //SimpleDateFormat fileDateFormatter = new SimpleDateFormat(CUSTOM_DATE_FORMAT, Locale.US);
-        String lastModifiedString = dateFormatter.format(new Date(fileToCache.lastModified()));
-        try {response.headers().set(HttpHeaders.Names.ETAG, Base64.getEncoder().encodeToString(lastModifiedString.getBytes("utf-8")).toLowerCase());} catch (UnsupportedEncodingException e) {}
+        if (fileToCache != null) {
+            response.headers().set(HttpHeaderNames.LAST_MODIFIED, fileToCache.lastModifiedString);
+            String etag = fileToCache.etag();
+            if (etag != null) { // not hashed yet
+                response.headers().set(HttpHeaderNames.ETAG, etag);
+            }
+        }
     }
-    private static void setContentTypeHeader(HttpResponse response, String pathString) {
-        File file = new File(pathString);
-        MimetypesFileTypeMap mimeTypesMap = new MimetypesFileTypeMap();
-        response.headers().set(HttpHeaders.Names.CONTENT_TYPE, mimeTypesMap.getContentType(file.getPath()));
+    /**
+     * True if the request named the file by its current fingerprinted name (app.<fingerprint>.js).
+     * A stale fingerprint gets the current content with the usual max-age.
+     */
+    private static boolean isImmutable(HttpRequest req, FileIndex.FileMetadata file) {
+        String fingerprinted = file.fingerprintedPathString();
+        return FINGERPRINTS && fingerprinted != null && req.uri().endsWith(fingerprinted);
     }
-
-    public String getExtension(String s) {
-        if (s.contains(".")) {
-            return s.split("\\.")[1];
-        } else return "";
-
+    private static void setContentTypeHeader(HttpResponse response, FileIndex.FileMetadata file) {
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, file == null ? MimeTypes.DEFAULT : file.contentType);
     }
-    class cachedByteArray {
-        String uri;
-        byte[] byteArray;
-        long gotInCache;
 
-        public cachedByteArray(String uri, byte[] byteArray) {
-            this.uri = uri;
-            this.byteArray = byteArray;
-            gotInCache = new Date().getTime();
+    private CachedFile checkContentInCache(String pathString, FileIndex.FileMetadata file) {
+        if (!FILE_MEMORY_CACHING) {
+            return null;
+        }
+        CachedFile cached = fileCache.get(pathString);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.metadata == file
+                && (cached.gzipMetadata == null || cached.gzipMetadata == fileIndex.get(cached.gzipMetadata.pathString))) {
+            return cached;
+        } else { // file changed and watcher has not invalidated it yet
+            fileCache.remove(pathString, cached);
+            return null;
+        }
+    }
+    /**
+     * Returns the retained cached entry of this file version, or null on a miss. Caller must release it.
+     */
+    private CachedFile retainedCachedFile(FileIndex.FileMetadata file) {
+        CachedFile cached = checkContentInCache(file.pathString, file);
+        if (cached != null && cached.tryRetain()) {
+            metrics.cacheHit();
+            return cached;
         }
+        metrics.cacheMiss();
+        return null;
+    }
+    /**
+     * Reads the file from disk into the cache, returns it retained or null if file not found. Caller must release it.
+     */
+    private CachedFile readAndCache(FileIndex.FileMetadata file, boolean text) throws IOException {
+        CachedFile cached = readFile(file, text);
+        if (cached == null) {
+            return null;
+        }
+        cached.retain();
+        if (FILE_MEMORY_CACHING && cached.isCurrent()) {
+            fileCache.put(file.pathString, cached, cached.weight());
+        } else { // not cached, or written after it was indexed: served once, the watcher indexes the new version
+            cached.release();
+        }
+        return cached;
+    }
+    /**
+     * Whether the cache takes the file at all, bigger files are served by sendfile.
+     */
+    static boolean isCacheable(FileIndex.FileMetadata file) {
+        return FILE_MEMORY_CACHING && file.size <= SENDFILE_THRESHOLD_BYTES;
+    }
+
+    /**
+     * Reads a file into the cache at startup, not counted as a miss. Returns false if it was
+     * already cached, is served by sendfile, was not found, or did not fit in the cache.
+     */
+    boolean preload(String pathString) {
+        return preload(pathString, new AtomicLong(fileCache.maxBytes() - fileCache.weightedSize()));
     }
-    class cachedStringFile {
-        String uri;
 
-        public cachedStringFile(String uri, String stringFile) {
-            this.uri = uri;
-            this.stringFile = stringFile;
-            gotInCache = new Date().getTime();
+    /**
+     * Like preload(pathString), but the cache weight of the file is taken from budget, shared by
+     * concurrent preloads so that together they never evict a hotter file preloaded before.
+     */
+    boolean preload(String pathString, AtomicLong budget) {
+        FileIndex.FileMetadata file = fileIndex.get(pathString);
+        if (file == null || !isCacheable(file) || checkContentInCache(pathString, file) != null) {
+            return false;
+        }
+        CachedFile cached;
+        try {
+            cached = readFile(file, FileKind.of(file.contentType).text);
+        } catch (IOException e) {
+            log.warn("Can not preload " + pathString, e);
+            return false;
+        }
+        if (cached == null) {
+            return false;
+        }
+        long weight = cached.weight();
+        if (!cached.isCurrent() || !reserve(budget, weight)) {
+            cached.release();
+            return false;
         }
+        if (!fileCache.put(pathString, cached, weight)) {
+            budget.addAndGet(weight);
+            return false;
+        }
+        return true;
+    }
 
-        String stringFile;
-        long gotInCache;
+    private static boolean reserve(AtomicLong budget, long weight) {
+        long left;
+        do {
+            left = budget.get();
+            if (left < weight) {
+                return false;
+            }
+        } while (!budget.compareAndSet(left, left - weight));
+        return true;
+    }
 
+    /**
+     * Reads the file, null if it is not found. Any other I/O error is thrown, the request gets 500.
+     */
+    private CachedFile readFile(FileIndex.FileMetadata file, boolean text) throws IOException {
+        if (text) {
+            return readStringFile(file);
+        }
+        // a file rewritten in place can be truncated under a mapping, it is copied instead
+        return file.size >= MMAP_THRESHOLD_BYTES && !file.writtenInPlace ? readMappedFile(file) : readByteFile(file);
     }
-    private String checkStringContentInCache(HttpRequest req, Map<String, cachedStringFile> stringCache) {
-        if (stringCache.containsKey(req.getUri()) && FILE_MEMORY_CACHING) {
-            if (stringCache.get(req.getUri()).gotInCache > new Date().getTime() - MEMORY_CACHE_EXPIRES_IN_MS) {
-                String content = stringCache.get(req.getUri()).stringFile;
-                return content;
-            } else { // cache got expired
-                stringCache.remove(req.getUri());
-                return null;
+    /**
+     * Text file as it is on disk plus its compressed variants, built here once. Whether it is
+     * plain US-ASCII is noted too, a request accepting only US-ASCII gets it as it is or 406.
+     */
+    private CachedFile readStringFile(FileIndex.FileMetadata file) throws IOException {
+        byte[] utf8;
+        try {
+            utf8 = Files.readAllBytes(Paths.get(file.pathString));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        boolean compress = COMPRESSION && MimeTypes.isCompressible(file.contentType);
+
+        // validators come from the bytes cached, a write after the file was indexed can not pair them with other content
+        String etag = validate(file, FileIndex.crc32(utf8), utf8.length);
+
+        CachedFile.Variant[] variants = new CachedFile.Variant[CachedFile.VARIANTS];
+        variants[CachedFile.IDENTITY] = newVariant(file, etag, utf8, null, compress);
+        FileIndex.FileMetadata gzipFile = null;
+        if (compress) {
+            byte[] gzip = null;
+            gzipFile = fileIndex.get(file.pathString + ".gz");
+            if (gzipFile != null) { // precompressed sibling on disk
+                try {
+                    gzip = Files.readAllBytes(Paths.get(gzipFile.pathString));
+                } catch (IOException e) {
+                    gzipFile = null;
+                }
+            }
+            if (gzip == null) {
+                gzip = Compression.gzip(utf8);
+            }
+            byte[] deflate = Compression.deflate(utf8);
+            // compressed variant is kept only if it is smaller
+            if (gzip.length < utf8.length) {
+                variants[CachedFile.GZIP] = newVariant(file, etag, gzip, Compression.GZIP, true);
+            }
+            if (deflate.length < utf8.length) {
+                variants[CachedFile.DEFLATE] = newVariant(file, etag, deflate, Compression.DEFLATE, true);
             }
         }
-        return null;
+        return new CachedFile(file, gzipFile, etag, isAscii(utf8), variants);
     }
-    private byte[] checkByteArrayContentInCache(HttpRequest req, Map<String, cachedByteArray> byteCache) {
-        if (byteCache.containsKey(req.getUri()) && FILE_MEMORY_CACHING) {
-            if (byteCache.get(req.getUri()).gotInCache > new Date().getTime() - MEMORY_CACHE_EXPIRES_IN_MS) {
-                byte[] content = byteCache.get(req.getUri()).byteArray;
-                return content;
-            } else { // cache got expired
-                byteCache.remove(req.getUri());
-                return null;
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) {
+                return false;
             }
         }
-        return null;
+        return true;
+    }
+    private CachedFile readByteFile(FileIndex.FileMetadata file) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(Paths.get(file.pathString));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        String etag = validate(file, FileIndex.crc32(bytes), bytes.length);
+        CachedFile.Variant[] variants = new CachedFile.Variant[CachedFile.VARIANTS];
+        variants[CachedFile.IDENTITY] = newVariant(file, etag, bytes, null, false);
+        return new CachedFile(file, null, etag, false, variants);
     }
-    private String readStringFile(String pathString) {
-        String content = null;
+    /**
+     * Mid-size binary file as a read-only mapping, its bytes are held only by the page cache.
+     */
+    private CachedFile readMappedFile(FileIndex.FileMetadata file) throws IOException {
+        ByteBuf content;
         try {
-            content = new String(Files.readAllBytes(Paths.get(pathString)));
-            return content;
+            content = MappedFileBuf.map(file.pathString);
         } catch (NoSuchFileException e) {
+            return null;
+        }
+        long crc32;
+        try {
+            crc32 = FileIndex.crc32(content.nioBuffer());
+        } catch (InternalError e) { // truncated after it was mapped, the bytes on disk now are read instead
+            content.release();
+            return readByteFile(file);
+        }
+        file.mapped = true;
+        String etag = validate(file, crc32, content.readableBytes());
+        CachedFile.Variant[] variants = new CachedFile.Variant[CachedFile.VARIANTS];
+        variants[CachedFile.IDENTITY] = newVariant(file, etag, content, null, false);
+        return new CachedFile(file, null, etag, false, variants);
+    }
+    /**
+     * ETag of the content read, the version's validator too if the hasher has not set it yet.
+     */
+    private static String validate(FileIndex.FileMetadata file, long crc32, long length) {
+        file.validate(crc32, length);
+        return FileIndex.FileMetadata.etag(crc32, length);
+    }
+    private static CachedFile.Variant newVariant(FileIndex.FileMetadata file, String etag, byte[] content,
+                                                 CharSequence contentEncoding, boolean varyAcceptEncoding) {
+        return newVariant(file, FileIndex.FileMetadata.etag(etag, contentEncoding), encodeDirect(content),
+                contentEncoding, varyAcceptEncoding);
+    }
+    private static CachedFile.Variant newVariant(FileIndex.FileMetadata file, String etag, ByteBuf content,
+                                                 CharSequence contentEncoding, boolean varyAcceptEncoding) {
+        return new CachedFile.Variant(content,
+                encodeHeaders(file, etag, content.readableBytes(), contentEncoding, varyAcceptEncoding),
+                etag, contentEncoding, varyAcceptEncoding);
+    }
+    /**
+     * Status line and headers of a 200 response that do not change between requests.
+     * Date, Expires and Connection are appended per request by CachedFile.newResponse.
+     */
+    private static ByteBuf encodeHeaders(FileIndex.FileMetadata file, String etag, long contentLength,
+                                         CharSequence contentEncoding, boolean varyAcceptEncoding) {
+        HttpResponse res = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        setContentTypeHeader(res, file);
+        setDateAndCacheHeaders(res, file);
+        res.headers().remove(HttpHeaderNames.DATE);
+        res.headers().remove(HttpHeaderNames.EXPIRES);
+        res.headers().set(HttpHeaderNames.ETAG, etag);
+        res.headers().set(HttpHeaderNames.CONTENT_LENGTH, contentLength);
+        res.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        if (contentEncoding != null) {
+            res.headers().set(HttpHeaderNames.CONTENT_ENCODING, contentEncoding);
+        }
+        if (varyAcceptEncoding) {
+            res.headers().set(HttpHeaderNames.VARY, HttpHeaderNames.ACCEPT_ENCODING);
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        StringBuilder sb = new StringBuilder();
+        sb.append(res.protocolVersion()).append(' ').append(res.status()).append("\r\n");
+        for (Map.Entry<String, String> header : res.headers()) {
+            sb.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
         }
-        return content;
+        return encodeDirect(sb.toString().getBytes(CharsetUtil.US_ASCII));
+    }
+    private static ByteBuf encodeDirect(byte[] bytes) {
+        return PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length, bytes.length).writeBytes(bytes);
     }
 
+    /**
+     * How files are served, by Content-Type. Looked up once per request.
+     * Files above SENDFILE_THRESHOLD_BYTES are sent from disk whatever their kind.
+     */
+    private static final class FileKind {
+        static final FileKind BINARY = new FileKind(false, false);   // cached bytes, mapped by size
+        static final FileKind ASSET = new FileKind(true, false);     // js, json, svg, xml: compressed variants, always UTF-8
+        static final FileKind DOCUMENT = new FileKind(true, true);   // text/*: UTF-8 or US-ASCII by Accept-Charset
+
+        final boolean text;
+        final boolean acceptCharset;
+
+        private FileKind(boolean text, boolean acceptCharset) {
+            this.text = text;
+            this.acceptCharset = acceptCharset;
+        }
+
+        static FileKind of(CharSequence contentType) {
+            if (!MimeTypes.isText(contentType)) {
+                return BINARY;
+            }
+            return contentType.toString().startsWith("text/") ? DOCUMENT : ASSET;
+        }
+    }
+
+    /**
+     * Per channel requests waiting while a cache miss is read on fileIoExecutor
+     * or while the channel is not writable. Event loop only.
+     */
+    private static final class PendingLoad {
+        boolean loading;
+        final ArrayDeque<HttpRequest> queued = new ArrayDeque<HttpRequest>();
+    }
 
+    /**
+     * Request waiting for a file read, answered on its own channel's event loop.
+     */
+    private static final class LoadWaiter {
+        final ChannelHandlerContext ctx;
+        final HttpRequest req;
+        final boolean text;
+        final boolean usAscii;
+        final long start;
+
+        LoadWaiter(ChannelHandlerContext ctx, HttpRequest req, boolean text, boolean usAscii, long start) {
+            this.ctx = ctx;
+            this.req = req;
+            this.text = text;
+            this.usAscii = usAscii;
+            this.start = start;
+        }
+    }
+
+    /**
+     * One read of a file in flight on fileIoExecutor and the requests that joined it.
+     * Once complete() is called nobody can join, a late request starts a new load.
+     */
+    private static final class FileLoad {
+        private final List<LoadWaiter> waiters = new ArrayList<LoadWaiter>();
+        private boolean done;
+
+        synchronized boolean join(LoadWaiter waiter) {
+            if (done) {
+                return false;
+            }
+            waiters.add(waiter);
+            return true;
+        }
+
+        synchronized List<LoadWaiter> complete() {
+            done = true;
+            return waiters;
+        }
+    }
 }
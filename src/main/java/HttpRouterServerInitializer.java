@@ -14,25 +14,200 @@
  * under the License.
  */
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPipeline;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import io.netty.handler.codec.http.BadClientSilencer;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
 import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AsciiString;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class HttpRouterServerInitializer extends ChannelInitializer<SocketChannel> {
+    // only the upgrade request is aggregated, GET has no body
+    private static final int MAX_UPGRADE_CONTENT_LENGTH = 8192;
+    private static final ByteBuf CONNECTION_PREFACE = Unpooled.unreleasableBuffer(Http2CodecUtil.connectionPrefaceBuf());
+
     private final HttpRouterServerHandler handler;
     private final BadClientSilencer       badClientSilencer = new BadClientSilencer();
+    private final PreparedResponseEncoder preparedResponseEncoder = new PreparedResponseEncoder();
 
-    public HttpRouterServerInitializer(Router router) {
+    // HTTP/2: every stream is a child channel with HTTP/1 style objects, served by the same handler
+    private final Http2StreamFrameToHttpObjectCodec streamCodec = new Http2StreamFrameToHttpObjectCodec(true);
+    private final ByteBufToHttpContentEncoder byteBufToHttpContentEncoder = new ByteBufToHttpContentEncoder();
+    private final ChannelInitializer<Channel> streamInitializer = new ChannelInitializer<Channel>() {
+        @Override
+        protected void initChannel(Channel ch) {
+            ch.pipeline()
+              .addLast(streamCodec)
+              .addLast(byteBufToHttpContentEncoder)
+              .addLast(new ChunkedWriteHandler());
+            if (handler.accessLog != null) {
+                ch.pipeline().addLast(new AccessLogHandler(handler.accessLog));
+            }
+            ch.pipeline()
+              .addLast(handler)
+              .addLast(badClientSilencer);
+        }
+    };
+    private final Http1HandlersRemover http1HandlersRemover = new Http1HandlersRemover();
+
+    public HttpRouterServerInitializer(Router<String> router) {
         handler = new HttpRouterServerHandler(router);
     }
 
+    public HttpRouterServerHandler handler() {
+        return handler;
+    }
+
     @Override
     public void initChannel(SocketChannel ch) {
-        ch.pipeline()
-          .addLast(new HttpServerCodec())
-          .addLast(handler)
-          .addLast(badClientSilencer);
+        ChannelPipeline p = ch.pipeline();
+        if (HttpRouterServer.READ_TIMEOUT_SECONDS > 0 || HttpRouterServer.WRITE_TIMEOUT_SECONDS > 0
+                || HttpRouterServer.IDLE_TIMEOUT_SECONDS > 0) {
+            p.addLast(new TimeoutHandler());
+        }
+        if (HttpRouterServer.FLUSH_AFTER > 0) {
+            // responses to pipelined requests (and HTTP/2 streams) read in one go leave in one flush
+            // at channelReadComplete, or every FLUSH_AFTER responses; outside a read a flush goes out at once
+            p.addLast(new FlushConsolidationHandler(HttpRouterServer.FLUSH_AFTER));
+        }
+        p.addLast(preparedResponseEncoder);
+        if (HttpRouterServer.HTTP2) {
+            // h2c: "Upgrade: h2c" request or the HTTP/2 connection preface (prior knowledge),
+            // anything else stays on Http1ServerCodec
+            Http1ServerCodec sourceCodec = new Http1ServerCodec();
+            HttpServerUpgradeHandler upgradeHandler = new HttpServerUpgradeHandler(sourceCodec,
+                    new HttpServerUpgradeHandler.UpgradeCodecFactory() {
+                        @Override
+                        public HttpServerUpgradeHandler.UpgradeCodec newUpgradeCodec(CharSequence protocol) {
+                            if (AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)) {
+                                return new Http2ServerUpgradeCodec(Http2FrameCodecBuilder.forServer().build(),
+                                        new Http2MultiplexHandler(streamInitializer, streamInitializer));
+                            }
+                            return null;
+                        }
+                    }, MAX_UPGRADE_CONTENT_LENGTH);
+            p.addLast(new PriorKnowledgeDetector())
+             .addLast(sourceCodec)
+             .addLast(upgradeHandler);
+        } else {
+            p.addLast(new Http1ServerCodec());
+        }
+        p.addLast(new ChunkedWriteHandler());
+        if (handler.accessLog != null) {
+            p.addLast(new AccessLogHandler(handler.accessLog));
+        }
+        p.addLast(handler)
+         .addLast(badClientSilencer);
+        if (HttpRouterServer.HTTP2) {
+            p.addLast(http1HandlersRemover);
+        }
+    }
+
+    /**
+     * Looks at the first bytes of the connection: the HTTP/2 connection preface switches it to HTTP/2
+     * (prior knowledge), anything else leaves it to the HTTP/1 handlers. Removes itself either way,
+     * bytes read so far go on to the next handler.
+     *
+     * Does what CleartextHttp2ServerUpgradeHandler does, which only takes HttpServerCodec.
+     */
+    private final class PriorKnowledgeDetector extends ByteToMessageDecoder {
+        @Override
+        protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+            int prefaceLength = CONNECTION_PREFACE.readableBytes();
+            int bytesRead = Math.min(in.readableBytes(), prefaceLength);
+            if (!ByteBufUtil.equals(CONNECTION_PREFACE, CONNECTION_PREFACE.readerIndex(), in, in.readerIndex(), bytesRead)) {
+                ctx.pipeline().remove(this);
+            } else if (bytesRead == prefaceLength) {
+                ChannelPipeline p = ctx.pipeline();
+                p.remove(Http1ServerCodec.class);
+                p.remove(HttpServerUpgradeHandler.class);
+                removeHttp1Handlers(p);
+                p.addAfter(ctx.name(), "http2FrameCodec", Http2FrameCodecBuilder.forServer().build());
+                p.addAfter("http2FrameCodec", null, new Http2MultiplexHandler(streamInitializer));
+                p.remove(this);
+            }
+        }
+    }
+
+    /**
+     * Closes connections of slow or stalled clients, so they do not hold buffers and file handles:
+     * <ul>
+     * <li>read timeout - part of an HTTP/1 request was read and no more bytes came for that long;</li>
+     * <li>write timeout - a response is pending and the socket took none of it for that long;</li>
+     * <li>idle timeout - nothing was read and no write made progress for that long (keep-alive, HTTP/2).</li>
+     * </ul>
+     * A long download to a client that keeps reading is not idle, write progress is observed.
+     */
+    private final class TimeoutHandler extends IdleStateHandler {
+        TimeoutHandler() {
+            super(true, HttpRouterServer.READ_TIMEOUT_SECONDS, HttpRouterServer.WRITE_TIMEOUT_SECONDS,
+                    HttpRouterServer.IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+
+        @Override
+        protected void channelIdle(ChannelHandlerContext ctx, IdleStateEvent evt) {
+            boolean timedOut;
+            if (evt.state() == IdleState.READER_IDLE) {
+                Http1ServerCodec codec = ctx.pipeline().get(Http1ServerCodec.class);
+                timedOut = codec != null && codec.receivingRequest();
+            } else if (evt.state() == IdleState.WRITER_IDLE) {
+                ChannelOutboundBuffer pending = ctx.channel().unsafe().outboundBuffer();
+                timedOut = pending != null && !pending.isEmpty();
+            } else {
+                timedOut = true;
+            }
+            if (timedOut) {
+                handler.metrics.connectionTimedOut();
+                ctx.close();
+            }
+        }
+    }
+
+    /**
+     * After the "Upgrade: h2c" request the connection pipeline only carries frames,
+     * the HTTP/1 handlers behind the HTTP/2 codec are taken out.
+     */
+    @ChannelHandler.Sharable
+    private final class Http1HandlersRemover extends ChannelInboundHandlerAdapter {
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof HttpServerUpgradeHandler.UpgradeEvent) {
+                removeHttp1Handlers(ctx.pipeline());
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+
+    private void removeHttp1Handlers(ChannelPipeline p) {
+        p.remove(ChunkedWriteHandler.class);
+        if (p.get(AccessLogHandler.class) != null) {
+            p.remove(AccessLogHandler.class);
+        }
+        p.remove(handler);
+        p.remove(badClientSilencer);
+        p.remove(http1HandlersRemover);
     }
 }
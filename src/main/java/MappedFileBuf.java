@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only memory mapping of a whole file as a ByteBuf.
+ *
+ * The content lives only in the OS page cache, the process keeps no copy of it.
+ * Responses take retained duplicates like of any other cached buffer, the file is unmapped
+ * when the last reference is released, so an evicted or invalidated entry is never unmapped
+ * under a write in flight.
+ *
+ * The mapping is wrapped as it is (Unpooled.wrappedBuffer, read-only and direct), this composite
+ * of that one component only adds the release hook. Works on any JDK without extra flags;
+ * unmapping on release needs sun.misc.Unsafe (JDK 9+) or the JDK 8 Cleaner, without them
+ * the mapping goes when the GC collects it.
+ *
+ * A file truncated in place while mapped makes reads past its new end fault (SIGBUS). Java copies
+ * out of the mapping then fail with InternalError, the kernel fails socket writes of it. Files the
+ * index saw rewritten in place are therefore not mapped, see FileIndex.FileMetadata.writtenInPlace.
+ */
+final class MappedFileBuf extends CompositeByteBuf {
+
+    private final MappedByteBuffer mapped;
+
+    private MappedFileBuf(MappedByteBuffer mapped) {
+        super(UnpooledByteBufAllocator.DEFAULT, true, 1, Unpooled.wrappedBuffer(mapped));
+        this.mapped = mapped;
+    }
+
+    /**
+     * Maps the file and touches its pages, so the event loop does not fault them in on write.
+     */
+    static MappedFileBuf map(String pathString) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(pathString), StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                mapped.load();
+            } catch (InternalError e) { // truncated since channel.size()
+                PlatformDependent.freeDirectBuffer(mapped);
+                throw new IOException(pathString + " truncated while mapped", e);
+            }
+            return new MappedFileBuf(mapped);
+        }
+    }
+
+    @Override
+    protected void deallocate() {
+        super.deallocate();
+        PlatformDependent.freeDirectBuffer(mapped); // unmap now instead of when the GC finds the buffer
+    }
+}
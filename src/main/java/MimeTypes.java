@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.util.AsciiString;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Immutable extension to Content-Type table, built once at class load.
+ * Replaces per-request MimetypesFileTypeMap, which parsed its tables on every construction.
+ */
+final class MimeTypes {
+
+    static final CharSequence DEFAULT = AsciiString.cached("application/octet-stream");
+
+    private static final Map<String, CharSequence> TYPES;
+
+    static {
+        Map<String, CharSequence> types = new HashMap<String, CharSequence>();
+        add(types, "text/html", "html", "htm");
+        add(types, "text/css", "css");
+        add(types, "text/plain", "txt");
+        add(types, "application/javascript", "js");
+        add(types, "application/json", "json");
+        add(types, "application/xml", "xml");
+        add(types, "image/jpeg", "jpg", "jpeg", "jpe");
+        add(types, "image/png", "png");
+        add(types, "image/gif", "gif");
+        add(types, "image/svg+xml", "svg");
+        add(types, "image/x-icon", "ico");
+        add(types, "font/woff", "woff");
+        add(types, "font/woff2", "woff2");
+        add(types, "application/pdf", "pdf");
+        add(types, "video/mp4", "mp4");
+        add(types, "audio/mpeg", "mp3");
+        add(types, "application/gzip", "gz");
+        TYPES = Collections.unmodifiableMap(types);
+    }
+
+    private MimeTypes() {
+    }
+
+    static CharSequence forPath(String pathString) {
+        int dot = pathString.lastIndexOf('.');
+        if (dot < 0 || dot < pathString.lastIndexOf('/')) {
+            return DEFAULT;
+        }
+        CharSequence type = TYPES.get(pathString.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type == null ? DEFAULT : type;
+    }
+
+    /**
+     * Text types: text/*, JavaScript, JSON, SVG and XML. Everything else is served as opaque bytes.
+     */
+    static boolean isText(CharSequence type) {
+        String s = type.toString();
+        return s.startsWith("text/") || s.equals("application/javascript") || s.equals("application/json")
+                || s.equals("application/xml") || s.endsWith("+xml");
+    }
+
+    /**
+     * Text types are worth compressing, images and media are already compressed.
+     */
+    static boolean isCompressible(CharSequence type) {
+        return isText(type);
+    }
+
+    private static void add(Map<String, CharSequence> types, String type, String... extensions) {
+        CharSequence entity = AsciiString.cached(type);
+        for (String extension : extensions) {
+            types.put(extension, entity);
+        }
+    }
+}
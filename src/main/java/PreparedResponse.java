@@ -0,0 +1,45 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fully encoded HTTP/1.1 response. It is not an HttpObject, so Http1ServerCodec passes
+ * it through untouched and PreparedResponseEncoder unwraps it in front of the codec.
+ */
+final class PreparedResponse extends DefaultByteBufHolder {
+    final long bodyLength; // status is always 200
+
+    PreparedResponse(ByteBuf data, long bodyLength) {
+        super(data);
+        this.bodyLength = bodyLength;
+    }
+
+    /**
+     * Shared, never released piece of prepared responses. Direct like the cached content: NIO and epoll
+     * write a composite without copying it only if every component is direct. The memory is owned
+     * by the JDK buffer and freed by the GC once the last duplicate in flight is gone.
+     */
+    static ByteBuf constant(byte[] bytes) {
+        ByteBuf buf = Unpooled.wrappedBuffer(ByteBuffer.allocateDirect(bytes.length));
+        buf.setBytes(0, bytes);
+        return Unpooled.unreleasableBuffer(buf);
+    }
+}
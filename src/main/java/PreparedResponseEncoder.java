@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Placed between the transport and Http1ServerCodec, writes PreparedResponse bytes as they are.
+ */
+@ChannelHandler.Sharable
+public class PreparedResponseEncoder extends MessageToMessageEncoder<PreparedResponse> {
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, PreparedResponse msg, List<Object> out) {
+        out.add(msg.content().retain());
+    }
+}
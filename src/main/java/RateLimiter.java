@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Token buckets per client address: one budget for all requests, a lower one for requests that read
+ * the disk (cache misses and sendfile), so one client can neither take the event loops nor flush
+ * the hot set out of the cache with cold files.
+ *
+ * A bucket is a single "theoretical arrival time" (GCRA, the same limit as a token bucket with
+ * rate and burst), taken with one CAS, no locks. Buckets live in a fixed-size table indexed by
+ * the address hash. A slot is handed to another address only when its bucket is full again (idle),
+ * while the bucket is in use a colliding address is charged to it, so collisions make the limit
+ * stricter, never looser. Memory does not grow with the number of clients.
+ */
+public class RateLimiter {
+
+    private final long requestIntervalNanos;
+    private final long requestToleranceNanos;
+    private final long missIntervalNanos;
+    private final long missToleranceNanos;
+    private final AtomicReferenceArray<Bucket> table;
+    private final int mask;
+    private final Clock clock;
+
+    /**
+     * @param requestsPerSecond all requests of one address
+     * @param requestBurst      requests taken at once after the address was idle
+     * @param missesPerSecond   disk reads of one address
+     * @param missBurst         disk reads taken at once after the address was idle
+     * @param tableSize         slots, rounded up to a power of two
+     */
+    public RateLimiter(double requestsPerSecond, int requestBurst, double missesPerSecond, int missBurst, int tableSize) {
+        this(requestsPerSecond, requestBurst, missesPerSecond, missBurst, tableSize, Clock.SYSTEM);
+    }
+
+    RateLimiter(double requestsPerSecond, int requestBurst, double missesPerSecond, int missBurst, int tableSize,
+                Clock clock) {
+        this.clock = clock;
+        requestIntervalNanos = (long) (1e9 / requestsPerSecond);
+        requestToleranceNanos = requestIntervalNanos * Math.max(requestBurst, 1);
+        missIntervalNanos = (long) (1e9 / missesPerSecond);
+        missToleranceNanos = missIntervalNanos * Math.max(missBurst, 1);
+        int size = Integer.highestOneBit(Math.max(tableSize, 2) - 1) << 1;
+        table = new AtomicReferenceArray<Bucket>(size);
+        mask = size - 1;
+    }
+
+    /**
+     * Takes a request from the address' budget. Returns 0, or nanos until a request would be allowed.
+     */
+    public long acquireRequest(InetAddress address) {
+        return acquire(bucket(address), Bucket.REQUEST_TAT, requestIntervalNanos, requestToleranceNanos);
+    }
+
+    /**
+     * Takes a disk read from the address' budget. Returns 0, or nanos until one would be allowed.
+     */
+    public long acquireMiss(InetAddress address) {
+        return acquire(bucket(address), Bucket.MISS_TAT, missIntervalNanos, missToleranceNanos);
+    }
+
+    private long acquire(Bucket bucket, AtomicLongFieldUpdater<Bucket> tatUpdater, long interval, long tolerance) {
+        long now = clock.nanoTime();
+        for (;;) {
+            long tat = tatUpdater.get(bucket);
+            long next = (tat - now < 0 ? now : tat) + interval;
+            long wait = next - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (tatUpdater.compareAndSet(bucket, tat, next)) {
+                return 0;
+            }
+        }
+    }
+
+    private Bucket bucket(InetAddress address) {
+        int h = address.hashCode() * 0x9e3779b9;
+        int index = (h ^ h >>> 16) & mask;
+        Bucket bucket = table.get(index);
+        long now = clock.nanoTime();
+        if (bucket != null && (bucket.address.equals(address) || !bucket.isIdle(now))) {
+            return bucket;
+        }
+        Bucket created = new Bucket(address, now);
+        if (table.compareAndSet(index, bucket, created)) {
+            return created;
+        }
+        Bucket winner = table.get(index);
+        return winner != null ? winner : created;
+    }
+
+    static final class Bucket {
+        static final AtomicLongFieldUpdater<Bucket> REQUEST_TAT = AtomicLongFieldUpdater.newUpdater(Bucket.class, "requestTat");
+        static final AtomicLongFieldUpdater<Bucket> MISS_TAT = AtomicLongFieldUpdater.newUpdater(Bucket.class, "missTat");
+
+        final InetAddress address;
+        volatile long requestTat;
+        volatile long missTat;
+
+        Bucket(InetAddress address, long now) {
+            this.address = address;
+            requestTat = now;
+            missTat = now;
+        }
+
+        /**
+         * Both budgets are full again, forgetting the bucket loses nothing.
+         */
+        boolean isIdle(long now) {
+            return requestTat - now <= 0 && missTat - now <= 0;
+        }
+    }
+
+    /**
+     * Source of System.nanoTime() values, tests step it by hand.
+     */
+    interface Clock {
+        Clock SYSTEM = new Clock() {
+            @Override
+            public long nanoTime() {
+                return System.nanoTime();
+            }
+        };
+
+        long nanoTime();
+    }
+}
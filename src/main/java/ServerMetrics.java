@@ -0,0 +1,364 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Request, response and cache counters of HttpRouterServerHandler.
+ *
+ * Recording is a LongAdder increment (plus a bucket scan for latency), so event loops
+ * never contend on one cache line. Values are summed only when /metrics or JMX reads them.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "httpRouterServer:type=ServerMetrics";
+
+    // Prometheus histogram bucket upper bounds
+    private static final long[] LATENCY_BUCKETS_NANOS = {
+            1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+            1000000, 2500000, 5000000, 10000000, 25000000, 50000000, 100000000, 250000000, 1000000000};
+    private static final String[] LATENCY_BUCKET_LABELS = new String[LATENCY_BUCKETS_NANOS.length];
+    private static final int MAX_STATUS = 600;
+
+    static {
+        for (int i = 0; i < LATENCY_BUCKETS_NANOS.length; i++) {
+            LATENCY_BUCKET_LABELS[i] = BigDecimal.valueOf(LATENCY_BUCKETS_NANOS[i], 9).stripTrailingZeros().toPlainString();
+        }
+    }
+
+    private final FileCache<?> fileCache;
+    private final ConcurrentHashMap<String, LatencyHistogram> routes = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final LongAdder[] statuses = new LongAdder[MAX_STATUS];
+    private final LongAdder responseBodyBytes = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder fileLoads = new LongAdder();
+    private final LongAdder coalescedLoads = new LongAdder();
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder timedOutConnections = new LongAdder();
+    private final LongAdder accessLogDropped = new LongAdder();
+
+    public ServerMetrics(FileCache<?> fileCache) {
+        this.fileCache = fileCache;
+        for (int i = 0; i < MAX_STATUS; i++) {
+            statuses[i] = new LongAdder();
+        }
+    }
+
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Time from reading the request to handing the response to the channel.
+     */
+    public void requestServed(String route, long nanos) {
+        LatencyHistogram histogram = routes.get(route);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = routes.putIfAbsent(route, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    public void responseWritten(int status, long bodyBytes) {
+        if (status > 0 && status < MAX_STATUS) {
+            statuses[status].increment();
+        }
+        if (bodyBytes > 0) {
+            responseBodyBytes.add(bodyBytes);
+        }
+    }
+
+    public void cacheHit() {
+        cacheHits.increment();
+    }
+
+    public void cacheMiss() {
+        cacheMisses.increment();
+    }
+
+    /**
+     * A cache miss submitted to the file I/O executor.
+     */
+    public void loadStarted() {
+        fileLoads.increment();
+    }
+
+    /**
+     * A cache miss that joined a load of the same file already in flight instead of reading it again.
+     */
+    public void loadCoalesced() {
+        coalescedLoads.increment();
+    }
+
+    public void connectionOpened() {
+        openConnections.increment();
+    }
+
+    public void connectionClosed() {
+        openConnections.decrement();
+    }
+
+    /**
+     * An accepted connection closed at once, over the total or per address cap.
+     */
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    /**
+     * A connection closed by the read, write or idle timeout.
+     */
+    public void connectionTimedOut() {
+        timedOutConnections.increment();
+    }
+
+    /**
+     * An access log record dropped because the writer was a whole ring behind.
+     */
+    public void accessLogDropped() {
+        accessLogDropped.increment();
+    }
+
+    /**
+     * Prometheus text exposition format 0.0.4.
+     */
+    public String prometheusText() {
+        StringBuilder sb = new StringBuilder(4096);
+
+        sb.append("# HELP http_request_duration_seconds Time from reading the request to writing the response.\n");
+        sb.append("# TYPE http_request_duration_seconds histogram\n");
+        for (Map.Entry<String, LatencyHistogram> e : new TreeMap<String, LatencyHistogram>(routes).entrySet()) {
+            String route = escape(e.getKey());
+            LatencyHistogram h = e.getValue();
+            long cumulative = 0;
+            for (int i = 0; i < LATENCY_BUCKETS_NANOS.length; i++) {
+                cumulative += h.buckets[i].sum();
+                sb.append("http_request_duration_seconds_bucket{route=\"").append(route).append("\",le=\"")
+                  .append(LATENCY_BUCKET_LABELS[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += h.buckets[LATENCY_BUCKETS_NANOS.length].sum();
+            sb.append("http_request_duration_seconds_bucket{route=\"").append(route).append("\",le=\"+Inf\"} ").append(cumulative).append('\n');
+            sb.append("http_request_duration_seconds_sum{route=\"").append(route).append("\"} ").append(seconds(h.sumNanos.sum())).append('\n');
+            sb.append("http_request_duration_seconds_count{route=\"").append(route).append("\"} ").append(cumulative).append('\n');
+        }
+
+        sb.append("# HELP http_responses_total Responses by status code.\n");
+        sb.append("# TYPE http_responses_total counter\n");
+        for (Map.Entry<String, Long> e : getResponsesByStatus().entrySet()) {
+            sb.append("http_responses_total{code=\"").append(e.getKey()).append("\"} ").append(e.getValue()).append('\n');
+        }
+        counter(sb, "http_response_body_bytes_total", "Response body bytes handed to the channel.", getResponseBodyBytes());
+
+        counter(sb, "file_cache_hits_total", "File lookups served from the memory cache.", getCacheHits());
+        counter(sb, "file_cache_misses_total", "File lookups that read the file.", getCacheMisses());
+        counter(sb, "file_loads_total", "Cache misses read on the file I/O executor.", getFileLoads());
+        counter(sb, "file_loads_coalesced_total", "Cache misses that waited for a load of the same file in flight.", getCoalescedLoads());
+        counter(sb, "file_cache_evictions_total", "Entries evicted to stay within the byte budget.", getCacheEvictions());
+        counter(sb, "file_cache_rejections_total", "Loaded files not admitted to the cache.", getCacheRejections());
+        gauge(sb, "file_cache_entries", "Files in the memory cache.", getCacheEntries());
+        gauge(sb, "file_cache_bytes", "Bytes held by the memory cache.", getCacheBytes());
+        gauge(sb, "file_cache_max_bytes", "Byte budget of the memory cache.", fileCache.maxBytes());
+        gauge(sb, "http_connections_open", "Connections admitted and not closed yet.", getOpenConnections());
+        counter(sb, "http_connections_rejected_total", "Connections closed at accept, over the connection caps.", getRejectedConnections());
+        counter(sb, "http_connections_timed_out_total", "Connections closed by the read, write or idle timeout.", getTimedOutConnections());
+        counter(sb, "access_log_dropped_total", "Access log records dropped, the log writer was behind.", getAccessLogDropped());
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public long getRequests() {
+        long requests = 0;
+        for (LatencyHistogram h : routes.values()) {
+            requests += h.count();
+        }
+        return requests;
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByRoute() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> e : routes.entrySet()) {
+            result.put(e.getKey(), e.getValue().count());
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Double> getMeanRequestMicrosByRoute() {
+        Map<String, Double> result = new TreeMap<String, Double>();
+        for (Map.Entry<String, LatencyHistogram> e : routes.entrySet()) {
+            long count = e.getValue().count();
+            result.put(e.getKey(), count == 0 ? 0 : e.getValue().sumNanos.sum() / 1000.0 / count);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Long> getResponsesByStatus() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (int i = 0; i < MAX_STATUS; i++) {
+            long count = statuses[i].sum();
+            if (count > 0) {
+                result.put(String.valueOf(i), count);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public long getNotModifiedResponses() {
+        return statuses[304].sum();
+    }
+
+    @Override
+    public long getResponseBodyBytes() {
+        return responseBodyBytes.sum();
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getFileLoads() {
+        return fileLoads.sum();
+    }
+
+    @Override
+    public long getCoalescedLoads() {
+        return coalescedLoads.sum();
+    }
+
+    @Override
+    public long getCacheEvictions() {
+        return fileCache.evictionCount();
+    }
+
+    @Override
+    public long getCacheRejections() {
+        return fileCache.rejectionCount();
+    }
+
+    @Override
+    public int getCacheEntries() {
+        return fileCache.size();
+    }
+
+    @Override
+    public long getCacheBytes() {
+        return fileCache.weightedSize();
+    }
+
+    @Override
+    public long getOpenConnections() {
+        return openConnections.sum();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    @Override
+    public long getTimedOutConnections() {
+        return timedOutConnections.sum();
+    }
+
+    @Override
+    public long getAccessLogDropped() {
+        return accessLogDropped.sum();
+    }
+
+    /**
+     * Fixed buckets, one LongAdder each, the last one counts values above every bound.
+     */
+    static final class LatencyHistogram {
+        final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS_NANOS.length + 1];
+        final LongAdder sumNanos = new LongAdder();
+
+        LatencyHistogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            int i = 0;
+            while (i < LATENCY_BUCKETS_NANOS.length && nanos > LATENCY_BUCKETS_NANOS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Map;
+
+/**
+ * JMX view of ServerMetrics, registered as httpRouterServer:type=ServerMetrics.
+ */
+public interface ServerMetricsMXBean {
+
+    long getRequests();
+
+    Map<String, Long> getRequestsByRoute();
+
+    Map<String, Double> getMeanRequestMicrosByRoute();
+
+    Map<String, Long> getResponsesByStatus();
+
+    long getNotModifiedResponses();
+
+    long getResponseBodyBytes();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    double getCacheHitRatio();
+
+    long getFileLoads();
+
+    long getCoalescedLoads();
+
+    long getCacheEvictions();
+
+    long getCacheRejections();
+
+    int getCacheEntries();
+
+    long getCacheBytes();
+
+    long getOpenConnections();
+
+    long getRejectedConnections();
+
+    long getTimedOutConnections();
+
+    long getAccessLogDropped();
+}
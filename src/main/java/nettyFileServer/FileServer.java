@@ -35,6 +35,9 @@ import io.netty.handler.ssl.util.SelfSignedCertificate;
 import io.netty.handler.stream.ChunkedWriteHandler;
 import io.netty.util.CharsetUtil;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 /**
  * Server that accept the path of a file an echo back its content.
  */
@@ -43,6 +46,8 @@ public final class FileServer {
     static final boolean SSL = System.getProperty("ssl") != null;
     // Use the same default port with the telnet example so that we can use the telnet client example to access it.
     static final int PORT = Integer.parseInt(System.getProperty("port", SSL? "8992" : "8023"));
+    // files are served from here only, a directory of its own: never the project or working directory
+    static final String ROOT = System.getProperty("root", "public");
 
     public static void main(String[] args) throws Exception {
         // Configure SSL.
@@ -54,6 +59,8 @@ public final class FileServer {
             sslCtx = null;
         }
 
+        final Path root = Paths.get(ROOT).toRealPath();
+
         // Configure the server.
         EventLoopGroup bossGroup = new NioEventLoopGroup(1);
         EventLoopGroup workerGroup = new NioEventLoopGroup();
@@ -76,7 +83,7 @@ public final class FileServer {
                              new LineBasedFrameDecoder(8192),
                              new StringDecoder(CharsetUtil.UTF_8),
                              new ChunkedWriteHandler(),
-                             new FileServerHandler());
+                             new FileServerHandler(root));
                  }
              });
 
@@ -16,48 +16,329 @@
 
 package nettyFileServer;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.ssl.SslHandler;
-import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedNioFile;
+import io.netty.util.AbstractReferenceCounted;
 
-import java.io.RandomAccessFile;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 
+/**
+ * Line protocol, one command per line:
+ * <ul>
+ * <li>{@code path} - "OK: length\n", the file, "\n" (the original one file form);</li>
+ * <li>{@code GET path1 path2 ...} - one frame per path, in order;</li>
+ * <li>{@code GET path offset length} - one frame with that part of the file, length is cut at the end of it,
+ * for resuming a transfer. Taken as a range when both last words are decimal numbers.</li>
+ * </ul>
+ * A frame is a header line followed by exactly length bytes, no separator, so files go back to back:
+ * "OK: length offset size path\n" + bytes, or "ERR: path message\n" with no bytes.
+ *
+ * Paths are relative to FileServer.ROOT and can not leave it (.., absolute paths, symlinks out of it).
+ * A file is opened only when its bytes are about to be sent, so a batch of any length (or a client that
+ * stops reading) holds one descriptor at a time: without SSL a zero-copy LazyFileRegion, with SSL a
+ * LazyChunkedFile. Both open the checked real path without following links and fail if it no longer
+ * resolves to itself, so a symlink swapped in after the check is not followed.
+ * Everything written for the lines of one read is flushed once, at channelReadComplete.
+ */
 public class FileServerHandler extends SimpleChannelInboundHandler<String> {
 
+    private static final String GET = "GET ";
+    private static final int CHUNK_SIZE = 8192;
+
+    // the header is out already, a frame whose bytes can not be sent can not be completed
+    private static final ChannelFutureListener ABORT_FRAME = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+            if (!future.isSuccess() && future.channel().isActive()) {
+                Throwable e = future.cause();
+                future.channel().writeAndFlush("\nERR: " + e.getClass().getSimpleName() + ": " + e.getMessage() + '\n')
+                      .addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    };
+
+    private final Path root;
+
+    public FileServerHandler(Path root) {
+        this.root = root;
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
-        ctx.writeAndFlush("HELO: Type the path of the file to retrieve.\n");
+        ctx.writeAndFlush("HELO: Type the path of the file to retrieve, or GET path1 path2 ..., or GET path offset length.\n");
     }
 
     @Override
     public void channelRead0(ChannelHandlerContext ctx, String msg) throws Exception {
-        msg = "index.html";
-        RandomAccessFile raf = null;
-        long length = -1;
+        if (msg.startsWith(GET)) {
+            String[] args = msg.substring(GET.length()).trim().split(" +");
+            if (args.length == 3 && isNumber(args[1]) && isNumber(args[2])) {
+                writeFrame(ctx, args[0], Long.parseLong(args[1]), Long.parseLong(args[2]));
+            } else {
+                for (String path : args) {
+                    if (!path.isEmpty()) {
+                        writeFrame(ctx, path, 0, Long.MAX_VALUE);
+                    }
+                }
+            }
+        } else {
+            writeFile(ctx, msg.trim());
+        }
+        // a client that does not read its files is not read from, batches stop piling up in the outbound buffer
+        if (!ctx.channel().isWritable()) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        ctx.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            ctx.channel().config().setAutoRead(true);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    private void writeFile(ChannelHandlerContext ctx, String path) {
+        Path file;
+        long length;
         try {
-            raf = new RandomAccessFile(msg, "r");
-            length = raf.length();
-        } catch (Exception e) {
-            ctx.writeAndFlush("ERR: " + e.getClass().getSimpleName() + ": " + e.getMessage() + '\n');
+            file = resolve(path);
+            length = Files.size(file);
+        } catch (IOException e) {
+            ctx.write("ERR: " + e.getClass().getSimpleName() + ": " + e.getMessage() + '\n');
             return;
-        } finally {
-            if (length < 0 && raf != null) {
-                raf.close();
+        }
+        ctx.write("OK: " + length + '\n');
+        writeContent(ctx, file, 0, length);
+        ctx.write("\n");
+    }
+
+    private void writeFrame(ChannelHandlerContext ctx, String path, long offset, long length) {
+        Path file;
+        long size;
+        try {
+            file = resolve(path);
+            size = Files.size(file);
+            if (offset > size) {
+                throw new IOException("offset " + offset + " is beyond the end of the file, size " + size);
             }
+        } catch (IOException e) {
+            ctx.write("ERR: " + path + ' ' + e.getClass().getSimpleName() + ": " + e.getMessage() + '\n');
+            return;
+        }
+        length = Math.min(length, size - offset);
+        ctx.write("OK: " + length + ' ' + offset + ' ' + size + ' ' + path + '\n');
+        if (length > 0) {
+            writeContent(ctx, file, offset, length);
         }
+    }
 
-        ctx.write("OK: " + raf.length() + '\n');
+    private static void writeContent(ChannelHandlerContext ctx, Path file, long offset, long length) {
         if (ctx.pipeline().get(SslHandler.class) == null) {
             // SSL not enabled - can use zero-copy file transfer.
-            ctx.write(new DefaultFileRegion(raf.getChannel(), 0, length));
+            ctx.write(new LazyFileRegion(file, offset, length)).addListener(ABORT_FRAME);
         } else {
             // SSL enabled - cannot use zero-copy file transfer.
-            ctx.write(new ChunkedFile(raf));
+            ctx.write(new LazyChunkedFile(file, offset, length)).addListener(ABORT_FRAME);
+        }
+    }
+
+    /**
+     * Real path of a regular file under root, or IOException.
+     */
+    private Path resolve(String path) throws IOException {
+        Path resolved = root.resolve(path).normalize();
+        if (!resolved.startsWith(root)) {
+            throw new IOException("outside of the served directory");
+        }
+        Path real = resolved.toRealPath();
+        if (!real.startsWith(root)) {
+            throw new IOException("outside of the served directory");
+        }
+        if (!Files.readAttributes(real, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isRegularFile()) {
+            throw new IOException("not a file");
+        }
+        return real;
+    }
+
+    /**
+     * Opens the real path from resolve for sending offset..offset + length. It had no links in it:
+     * a link put in its place fails to open, a directory above it replaced by a link fails the
+     * re-check, and a file cut shorter than the header already sent fails too.
+     */
+    private static FileChannel open(Path real, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(real, StandardOpenOption.READ, LinkOption.NOFOLLOW_LINKS);
+        try {
+            if (!real.toRealPath().equals(real)) {
+                throw new IOException("moved since it was checked");
+            }
+            if (channel.size() < offset + length) {
+                throw new IOException("file changed, size " + channel.size());
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static boolean isNumber(String s) {
+        if (s.isEmpty() || s.length() > 18) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < '0' || s.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * DefaultFileRegion over the checked file, opened when the transport starts sending it.
+     */
+    private static final class LazyFileRegion extends AbstractReferenceCounted implements FileRegion {
+        private final Path file;
+        private final long offset;
+        private final long length;
+        private DefaultFileRegion region;
+
+        LazyFileRegion(Path file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public long position() {
+            return offset;
+        }
+
+        @Deprecated
+        @Override
+        public long transfered() {
+            return transferred();
+        }
+
+        @Override
+        public long transferred() {
+            return region == null ? 0 : region.transferred();
+        }
+
+        @Override
+        public long count() {
+            return length;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target, long position) throws IOException {
+            if (region == null) {
+                region = new DefaultFileRegion(open(file, offset, length), offset, length);
+            }
+            return region.transferTo(target, position);
+        }
+
+        @Override
+        public FileRegion retain() {
+            super.retain();
+            return this;
+        }
+
+        @Override
+        public FileRegion retain(int increment) {
+            super.retain(increment);
+            return this;
+        }
+
+        @Override
+        public FileRegion touch() {
+            return this;
+        }
+
+        @Override
+        public FileRegion touch(Object hint) {
+            return this;
+        }
+
+        @Override
+        protected void deallocate() {
+            if (region != null) {
+                region.release();
+            }
+        }
+    }
+
+    /**
+     * ChunkedNioFile over the checked file, opened on the first chunk.
+     */
+    private static final class LazyChunkedFile implements ChunkedInput<ByteBuf> {
+        private final Path file;
+        private final long offset;
+        private final long length;
+        private ChunkedNioFile in;
+
+        LazyChunkedFile(Path file, long offset, long length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public boolean isEndOfInput() throws Exception {
+            return in != null && in.isEndOfInput();
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (in != null) {
+                in.close();
+            }
+        }
+
+        @Deprecated
+        @Override
+        public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+            if (in == null) {
+                in = new ChunkedNioFile(open(file, offset, length), offset, length, CHUNK_SIZE);
+            }
+            return in.readChunk(allocator);
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long progress() {
+            return in == null ? 0 : in.progress();
         }
-        ctx.writeAndFlush("\n");
     }
 
     @Override
@@ -71,4 +352,3 @@ public class FileServerHandler extends SimpleChannelInboundHandler<String> {
         }
     }
 }
-
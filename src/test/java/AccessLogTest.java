@@ -0,0 +1,237 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records written by AccessLog: what it drops when the writer is behind, the order AccessLogHandler
+ * hands them over for pipelined HTTP/1.1 and multiplexed HTTP/2 requests, escaping and rolling.
+ */
+public class AccessLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void fullRingDropsAndCounts() throws Exception {
+        ServerMetrics metrics = new ServerMetrics(null);
+        File file = new File(folder.getRoot(), "access.log");
+        AccessLog log = new AccessLog(file.getPath(), false, 1 << 20, 0, 4, metrics);
+        log.stop(); // nothing drains the ring from now on
+
+        for (int i = 0; i < 10; i++) {
+            log.log(request("/" + i), null, "HTTP/1.1", 200, 1, 0, null);
+        }
+        assertEquals(6, metrics.getAccessLogDropped());
+    }
+
+    @Test
+    public void pipelinedRequestsLoggedInOrder() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        AccessLog log = new AccessLog(file.getPath(), false, 1 << 20, 0, 16, new ServerMetrics(null));
+        EmbeddedChannel channel = new EmbeddedChannel(new AccessLogHandler(log));
+        channel.writeInbound(request("/a"), request("/b"), request("/c"));
+        channel.writeOutbound(response(HttpResponseStatus.OK), response(HttpResponseStatus.NOT_FOUND),
+                response(HttpResponseStatus.NOT_MODIFIED));
+        channel.finishAndReleaseAll();
+        log.stop();
+
+        List<String> lines = Files.readAllLines(file.toPath(), CharsetUtil.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains("\"GET /a HTTP/1.1\" 200 2 "));
+        assertTrue(lines.get(1), lines.get(1).contains("\"GET /b HTTP/1.1\" 404 2 "));
+        assertTrue(lines.get(2), lines.get(2).contains("\"GET /c HTTP/1.1\" 304 2 "));
+    }
+
+    @Test
+    public void http2StreamsLoggedWithProtocol() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        final AccessLog log = new AccessLog(file.getPath(), false, 1 << 20, 0, 16, new ServerMetrics(null));
+        EmbeddedChannel server = new EmbeddedChannel(Http2FrameCodecBuilder.forServer().build(),
+                new Http2MultiplexHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true), new AccessLogHandler(log),
+                                new ChannelInboundHandlerAdapter() {
+                                    @Override
+                                    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                        if (msg instanceof HttpRequest) {
+                                            HttpResponseStatus status = ((HttpRequest) msg).uri().equals("/a")
+                                                    ? HttpResponseStatus.OK : HttpResponseStatus.NOT_FOUND;
+                                            ctx.writeAndFlush(response(status));
+                                        }
+                                        ReferenceCountUtil.release(msg);
+                                    }
+                                });
+                    }
+                }));
+        EmbeddedChannel client = new EmbeddedChannel(Http2FrameCodecBuilder.forClient().build(),
+                new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+        try {
+            for (String path : new String[] {"/a", "/b"}) {
+                Http2StreamChannel stream = new Http2StreamChannelBootstrap(client)
+                        .handler(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                ReferenceCountUtil.release(msg);
+                            }
+                        }).open().syncUninterruptibly().getNow();
+                stream.writeAndFlush(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers()
+                        .method("GET").scheme("http").authority("localhost").path(path), true));
+                exchange(client, server);
+            }
+        } finally {
+            client.finishAndReleaseAll();
+            server.finishAndReleaseAll();
+        }
+        log.stop();
+
+        List<String> lines = Files.readAllLines(file.toPath(), CharsetUtil.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0), lines.get(0).contains("\"GET /a HTTP/2.0\" 200 2 "));
+        assertTrue(lines.get(1), lines.get(1).contains("\"GET /b HTTP/2.0\" 404 2 "));
+    }
+
+    @Test
+    public void combinedEscapesQuotesAndControlCharacters() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        AccessLog log = new AccessLog(file.getPath(), false, 1 << 20, 0, 16, new ServerMetrics(null));
+        HttpRequest req = request("/a\"b\\c\u0001d");
+        req.headers().set(HttpHeaderNames.USER_AGENT, "agent \"x\"\u001b[31m\u007f");
+        log.log(req, null, "HTTP/1.1", 200, 0, 0, null);
+        log.stop();
+
+        String line = new String(Files.readAllBytes(file.toPath()), CharsetUtil.UTF_8);
+        assertTrue(line, line.contains("\"GET /a\\\"b\\\\c\\x01d HTTP/1.1\" 200 - \"-\" \"agent \\\"x\\\"\\x1b[31m\\x7f\" "));
+        assertEquals(line.length() - 1, line.indexOf('\n'));
+    }
+
+    @Test
+    public void jsonEscapesQuotesAndControlCharacters() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        AccessLog log = new AccessLog(file.getPath(), true, 1 << 20, 0, 16, new ServerMetrics(null));
+        HttpRequest req = request("/a\"b\\c\u0001d");
+        req.headers().set(HttpHeaderNames.USER_AGENT, "agent \"x\"\u001b[31m");
+        log.log(req, null, "HTTP/1.1", 200, 0, 0, AccessLog.HIT);
+        log.stop();
+
+        String line = new String(Files.readAllBytes(file.toPath()), CharsetUtil.UTF_8);
+        assertTrue(line, line.contains("\"uri\":\"/a\\\"b\\\\c\\u0001d\""));
+        assertTrue(line, line.contains("\"user_agent\":\"agent \\\"x\\\"\\u001b[31m\""));
+        assertEquals(line.length() - 1, line.indexOf('\n'));
+    }
+
+    @Test
+    public void rollsAndKeepsConfiguredFiles() throws Exception {
+        File file = new File(folder.getRoot(), "access.log");
+        AccessLog log = new AccessLog(file.getPath(), false, 200, 2, 16, new ServerMetrics(null));
+        for (int i = 0; i < 10; i++) {
+            log.log(request("/" + i), null, "HTTP/1.1", 200, 1, 0, null);
+            awaitContains(file, "GET /" + i + " ");
+        }
+        log.stop();
+
+        assertTrue(new File(file.getPath() + ".1").isFile());
+        assertTrue(new File(file.getPath() + ".2").isFile());
+        assertFalse(new File(file.getPath() + ".3").exists());
+        List<String> lines = new ArrayList<String>();
+        for (String name : new String[] {file.getPath() + ".2", file.getPath() + ".1", file.getPath()}) {
+            File f = new File(name);
+            assertTrue(name + " is " + f.length() + " bytes", f.length() <= 200);
+            lines.addAll(Files.readAllLines(f.toPath(), CharsetUtil.UTF_8));
+        }
+        // oldest records rolled away, the rest in order across the files
+        int first = 10 - lines.size();
+        assertTrue(first > 0);
+        for (int i = 0; i < lines.size(); i++) {
+            assertTrue(lines.get(i), lines.get(i).contains("\"GET /" + (first + i) + " HTTP/1.1\""));
+        }
+    }
+
+    private static FullHttpRequest request(String uri) {
+        // no header validation, the escaping tests send what a raw client could
+        return new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri, Unpooled.EMPTY_BUFFER, false);
+    }
+
+    private static DefaultFullHttpResponse response(HttpResponseStatus status) {
+        return new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.copiedBuffer("ok", CharsetUtil.US_ASCII));
+    }
+
+    /**
+     * Moves bytes between the two ends until neither has anything to send.
+     */
+    private static void exchange(EmbeddedChannel client, EmbeddedChannel server) {
+        boolean moved;
+        do {
+            moved = false;
+            client.runPendingTasks();
+            server.runPendingTasks();
+            Object msg;
+            while ((msg = client.readOutbound()) != null) {
+                server.writeInbound(msg);
+                moved = true;
+            }
+            while ((msg = server.readOutbound()) != null) {
+                client.writeInbound(msg);
+                moved = true;
+            }
+        } while (moved);
+    }
+
+    private static void awaitContains(File file, String text) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!file.isFile() || !new String(Files.readAllBytes(file.toPath()), CharsetUtil.UTF_8).contains(text)) {
+            assertTrue("\"" + text + "\" not written", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class ByteRangesTest {
+
+    @Test
+    public void suffixRangeIsTheLastBytes() {
+        assertRanges(ByteRanges.parse("bytes=-10", 100), 90, 99);
+        assertRanges(ByteRanges.parse("bytes=-500", 100), 0, 99); // longer than the file: all of it
+    }
+
+    @Test
+    public void openEndedRangeRunsToTheEnd() {
+        assertRanges(ByteRanges.parse("bytes=40-", 100), 40, 99);
+        assertRanges(ByteRanges.parse("bytes=0-", 100), 0, 99);
+    }
+
+    @Test
+    public void endIsCutAtTheEndOfTheFile() {
+        assertRanges(ByteRanges.parse("bytes=90-1000", 100), 90, 99);
+        assertEquals("bytes 90-99/100", ByteRanges.parse("bytes=90-1000", 100).contentRange(0, 100));
+    }
+
+    @Test
+    public void overlappingAndAdjacentRangesAreMergedInOrder() {
+        assertRanges(ByteRanges.parse("bytes=50-59, 0-9, 5-14", 100), 0, 14, 50, 59);
+        assertRanges(ByteRanges.parse("bytes=0-9,10-19", 100), 0, 19);
+        assertRanges(ByteRanges.parse("bytes=-10,85-", 100), 85, 99);
+        assertRanges(ByteRanges.parse("bytes=0-99,20-30", 100), 0, 99);
+    }
+
+    @Test
+    public void rangesOutsideTheFileAreUnsatisfiable() {
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=100-200", 100));
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=-0", 100));
+        assertSame(ByteRanges.UNSATISFIABLE, ByteRanges.parse("bytes=0-", 0));
+        assertEquals("bytes */100", ByteRanges.unsatisfiedContentRange(100));
+        // one satisfiable range is enough, the others are dropped
+        assertRanges(ByteRanges.parse("bytes=200-300,10-19", 100), 10, 19);
+    }
+
+    @Test
+    public void malformedHeaderServesTheWholeFile() {
+        assertNull(ByteRanges.parse(null, 100));
+        assertNull(ByteRanges.parse("items=0-9", 100));
+        assertNull(ByteRanges.parse("bytes=9-0", 100));
+        assertNull(ByteRanges.parse("bytes=a-9", 100));
+        assertNull(ByteRanges.parse("bytes=10", 100));
+        StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRanges.MAX_RANGES; i++) {
+            many.append(',').append(2 * i).append('-').append(2 * i);
+        }
+        assertNull(ByteRanges.parse(many.toString(), 100));
+    }
+
+    @Test
+    public void multipartLengthCountsEveryByteOfTheBody() {
+        ByteRanges ranges = ByteRanges.parse("bytes=0-9,20-29,-5", 100);
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < ranges.count(); i++) {
+            body.append(ranges.partHeader(i, "text/html", 100));
+            for (long b = 0; b < ranges.length(i); b++) {
+                body.append('x');
+            }
+        }
+        body.append(ByteRanges.closingDelimiter());
+        assertEquals(body.length(), ranges.multipartLength("text/html", 100));
+    }
+
+    private static void assertRanges(ByteRanges ranges, long... startEndPairs) {
+        assertEquals(startEndPairs.length / 2, ranges.count());
+        for (int i = 0; i < ranges.count(); i++) {
+            assertEquals("start of range " + i, startEndPairs[2 * i], ranges.start(i));
+            assertEquals("length of range " + i, startEndPairs[2 * i + 1] - startEndPairs[2 * i] + 1, ranges.length(i));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import com.sun.management.ThreadMXBean;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Cache hits through the HTTP/1.1 pipeline in an EmbeddedChannel. Files are preloaded,
+ * so hits are answered in place and nothing goes through the file I/O pool.
+ * Allocation is measured per thread (com.sun.management.ThreadMXBean), for the JMH view run
+ * HttpRouterServerHandlerBenchmark with -prof gc.
+ */
+public class CacheHitTest {
+
+    // about 2.5KB today, most of it decoding the request and routing it; a per-request date formatter,
+    // MIME table or copy of the content would be several KB to hundreds of KB
+    private static final long MAX_BYTES_PER_HIT = 4096;
+
+    private HttpRouterServerHandler handler;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() {
+        Router<String> router = new Router<String>()
+            .GET(HttpRouterServer.PUBLIC_DIR + ":id", "public")
+            .notFound("404 Not Found");
+        handler = new HttpRouterServerHandler(router);
+        channel = new EmbeddedChannel(new PreparedResponseEncoder(), new Http1ServerCodec(), new ChunkedWriteHandler(), handler);
+        assertTrue(handler.preload("public/test.html"));
+        assertTrue(handler.preload("public/pngfile.png")); // mapped
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        handler.close();
+    }
+
+    @Test
+    public void preparedResponseIsOneDirectBuffer() {
+        for (String uri : new String[] {"/public/test.html", "/public/pngfile.png"}) {
+            ByteBuf response = exchange(uri, "Accept-Encoding: gzip");
+            try {
+                assertTrue(response.toString(0, 15, CharsetUtil.US_ASCII).startsWith("HTTP/1.1 200"));
+                // NIO and epoll copy a heap or partly heap buffer into a direct one before writing it
+                assertTrue(uri + " would be copied on write", response.isDirect());
+            } finally {
+                response.release();
+            }
+            assertNull(channel.readOutbound());
+        }
+    }
+
+    @Test
+    public void dateAndContentTypeAllocateNothing() {
+        ThreadMXBean threads = allocationCounter();
+        FileIndex.FileMetadata file = handler.fileIndex.get("public/test.html");
+        long sink = 0;
+        for (int i = 0; i < 100000; i++) { // warm up, JIT
+            sink += HttpDateClock.date().length() + HttpDateClock.expires().length() + file.contentType.length();
+        }
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < 100000; i++) {
+            sink += HttpDateClock.date().length() + HttpDateClock.expires().length() + file.contentType.length();
+            sink += MimeTypes.isText(file.contentType) ? 1 : 0;
+        }
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        assertTrue(sink > 0);
+        // a new second renders the clock once, a few hundred bytes; per call nothing
+        assertTrue(allocated + " bytes allocated for 100000 calls", allocated < 4096);
+    }
+
+    @Test
+    public void cacheHitAllocationIsBounded() {
+        ThreadMXBean threads = allocationCounter();
+        ByteBuf[] requests = {
+                Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(TestServer.request("/public/test.html"), CharsetUtil.US_ASCII)),
+                Unpooled.unreleasableBuffer(Unpooled.copiedBuffer(TestServer.request("/public/pngfile.png"), CharsetUtil.US_ASCII))
+        };
+        for (int i = 0; i < 20000; i++) { // warm up, JIT
+            exchangeAndRelease(requests[i & 1]);
+        }
+        int hits = 20000;
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < hits; i++) {
+            exchangeAndRelease(requests[i & 1]);
+        }
+        long perHit = (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before) / hits;
+        // decoding the request and the response composite; a per-request date formatter, MIME table
+        // or content copy would be kilobytes
+        assertTrue(perHit + " bytes allocated per cache hit", perHit < MAX_BYTES_PER_HIT);
+    }
+
+    private static ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof ThreadMXBean && ((ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        ((ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+        return (ThreadMXBean) bean;
+    }
+
+    private void exchangeAndRelease(ByteBuf request) {
+        channel.writeInbound(request.duplicate());
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    ByteBuf exchange(String uri, String... headers) {
+        channel.writeInbound(Unpooled.copiedBuffer(TestServer.request(uri, headers), CharsetUtil.US_ASCII));
+        Object msg = channel.readOutbound();
+        assertTrue("expected one prepared buffer, got " + msg, msg instanceof ByteBuf);
+        return (ByteBuf) msg;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileCacheTest {
+
+    @Test
+    public void bufferedHitsKeepHotEntryThroughScan() {
+        FileCache<String> cache = new FileCache<String>(100);
+        cache.put("hot", "hot", 10);
+        for (int i = 0; i < FileCache.ReadBuffer.SIZE * 4; i++) {
+            assertEquals("hot", cache.get("hot"));
+        }
+        for (int i = 0; i < 100; i++) {
+            String key = "cold-" + i;
+            cache.get(key);
+            cache.put(key, key, 10);
+        }
+        assertNotNull(cache.get("hot"));
+        assertTrue(cache.weightedSize() <= 100);
+    }
+
+    @Test
+    public void admissionComparesEveryVictim() {
+        FileCache<String> cache = new FileCache<String>(100);
+        cache.put("cold", "cold", 50); // first victim, never read
+        cache.put("hot", "hot", 50);
+        for (int i = 0; i < 3; i++) {
+            cache.get("hot");
+        }
+        cache.get("big");
+        cache.get("big");
+
+        // colder than the second victim it would take out with the first
+        assertFalse(cache.put("big", "big", 80));
+        assertEquals("hot", cache.get("hot"));
+        assertEquals("cold", cache.get("cold"));
+        assertEquals(1, cache.rejectionCount());
+
+        for (int i = 0; i < 5; i++) {
+            cache.get("big");
+        }
+        assertTrue(cache.put("big", "big", 80));
+        assertNull(cache.get("hot"));
+        assertNull(cache.get("cold"));
+        assertEquals(2, cache.evictionCount());
+    }
+
+    @Test
+    public void everyValueLeavesExactlyOnceUnderConcurrentReads() throws Exception {
+        final AtomicInteger removed = new AtomicInteger();
+        final FileCache<Object> cache = new FileCache<Object>(1000, new FileCache.RemovalListener<Object>() {
+            @Override
+            public void onRemoval(String key, Object value) {
+                removed.incrementAndGet();
+            }
+        });
+        final int puts = 20000;
+        List<Thread> readers = new ArrayList<Thread>();
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < puts; i++) {
+                    int key = ThreadLocalRandom.current().nextInt(200);
+                    cache.put("key-" + key, new Object(), 10 + key % 50);
+                }
+            }
+        };
+        for (int t = 0; t < 4; t++) {
+            readers.add(new Thread() {
+                @Override
+                public void run() {
+                    while (writer.isAlive()) {
+                        cache.get("key-" + ThreadLocalRandom.current().nextInt(200));
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        long weight = 0;
+        for (int key = 0; key < 200; key++) {
+            if (cache.get("key-" + key) != null) {
+                weight += 10 + key % 50;
+            }
+        }
+        assertEquals(weight, cache.weightedSize());
+        assertTrue(cache.weightedSize() <= 1000);
+        assertEquals(puts, removed.get() + cache.size());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileIndexTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final LinkedBlockingQueue<String> changes = new LinkedBlockingQueue<String>();
+    private String dir;
+    private FileIndex index;
+
+    @Before
+    public void start() {
+        dir = folder.getRoot().getPath() + File.separator;
+        index = new FileIndex(dir, new FileIndex.ChangeListener() {
+            @Override
+            public void onChange(String pathString) {
+                changes.add(pathString);
+            }
+        });
+        index.start(true, 100);
+    }
+
+    @After
+    public void stop() {
+        index.stop();
+    }
+
+    @Test
+    public void editedFileGetsNewEtag() throws Exception {
+        File file = write("a.txt", "one");
+        FileIndex.FileMetadata before = awaitVersion(file, null);
+        assertEquals(3, before.size);
+
+        // same size and modification time, only the content (CRC32) tells the versions apart
+        long lastModified = file.lastModified();
+        write("a.txt", "two");
+        file.setLastModified(lastModified);
+        FileIndex.FileMetadata after = awaitVersion(file, before.etag());
+        assertNotEquals(before.etag(), after.etag());
+        assertEquals(3, after.size);
+    }
+
+    @Test
+    public void touchKeepsEtag() throws Exception {
+        File file = write("b.txt", "same");
+        FileIndex.FileMetadata before = awaitVersion(file, null);
+        file.setLastModified(before.lastModified + 5000);
+        FileIndex.FileMetadata after = awaitVersion(file, null);
+        assertEquals(before.lastModified + 5000, after.lastModified);
+        assertEquals(before.etag(), after.etag());
+    }
+
+    @Test
+    public void etagMatchesOnlyTheVersionAndItsVariants() {
+        FileIndex.FileMetadata file = new FileIndex.FileMetadata(dir + "d.html", 5, 0);
+        assertNull(file.etag());
+        assertFalse(file.matches("\"00000000-5\""));
+
+        String etag = file.validate(0x1234abcdL, 5);
+        assertEquals("\"1234abcd-5\"", etag);
+        assertEquals(etag, file.validate(0x0L, 5)); // set once
+        assertTrue(file.matches(etag));
+        assertTrue(file.matches(file.etag(Compression.GZIP)));
+        assertTrue(file.matches("\"1234abcd-5-deflate\""));
+        assertFalse(file.matches("\"1234abcd-5-anything\""));
+        assertFalse(file.matches("\"1234abcd-5-gzipx\""));
+        assertFalse(file.matches("\"1234abcd-6\""));
+    }
+
+    @Test
+    public void contentOfAnotherLengthDoesNotValidate() {
+        FileIndex.FileMetadata file = new FileIndex.FileMetadata(dir + "e.txt", 5, 0);
+        assertNull(file.validate(0x1234abcdL, 6));
+        assertNull(file.fingerprintedPathString());
+    }
+
+    @Test
+    public void deletedFileIsForgotten() throws Exception {
+        File file = write("c.txt", "gone");
+        awaitVersion(file, null);
+        Files.delete(file.toPath());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (index.get(dir + "c.txt") != null && System.nanoTime() < deadline) {
+            changes.poll(100, TimeUnit.MILLISECONDS);
+        }
+        assertNull(index.get(dir + "c.txt"));
+    }
+
+    @Test
+    public void mappedFileRewrittenInPlaceIsNoted() throws Exception {
+        File inPlace = write("f.bin", "one");
+        FileIndex.FileMetadata mapped = awaitVersion(inPlace, null);
+        assertFalse(mapped.writtenInPlace);
+        mapped.mapped = true;
+        write("f.bin", "two!");
+        FileIndex.FileMetadata rewritten = awaitVersion(inPlace, mapped.etag());
+        assertTrue(rewritten.writtenInPlace);
+        write("f.bin", "three");
+        assertTrue("later versions are not mapped either", awaitVersion(inPlace, rewritten.etag()).writtenInPlace);
+
+        File notMapped = write("g.bin", "one");
+        String etag = awaitVersion(notMapped, null).etag();
+        write("g.bin", "two!");
+        assertFalse(awaitVersion(notMapped, etag).writtenInPlace);
+    }
+
+    @Test
+    public void mappedFileReplacedByRenameIsNotNoted() throws Exception {
+        File file = write("h.bin", "one");
+        FileIndex.FileMetadata mapped = awaitVersion(file, null);
+        mapped.mapped = true;
+        File replacement = folder.newFile("h.bin.tmp");
+        Files.write(replacement.toPath(), "two!".getBytes(StandardCharsets.UTF_8));
+        Files.move(replacement.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        assertFalse(awaitVersion(file, mapped.etag()).writtenInPlace);
+    }
+
+    private File write(String name, String content) throws Exception {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Waits until the file as it is on disk now is indexed and hashed, with another ETag than oldEtag.
+     * A write is seen as several events (truncate, write), earlier versions are skipped.
+     */
+    private FileIndex.FileMetadata awaitVersion(File file, String oldEtag) throws InterruptedException {
+        String pathString = dir + file.getName();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        FileIndex.FileMetadata metadata = index.get(pathString);
+        while ((metadata == null || metadata.etag() == null || metadata.etag().equals(oldEtag)
+                || metadata.size != file.length() || metadata.lastModified != file.lastModified())
+                && System.nanoTime() < deadline) {
+            changes.poll(100, TimeUnit.MILLISECONDS);
+            metadata = index.get(pathString);
+        }
+        assertNotNull(pathString + " not indexed", metadata);
+        assertNotNull(pathString + " not hashed", metadata.etag());
+        return metadata;
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpRouterServerHandlerTest {
+
+    private static final int COALESCED_CLIENTS = 8;
+    private static TestServer server;
+    private final File scratch = new File(HttpRouterServer.PUBLIC_DIR, "handler-test.txt");
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        server = new TestServer();
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        server.close();
+    }
+
+    @After
+    public void deleteScratch() throws Exception {
+        Files.deleteIfExists(scratch.toPath());
+    }
+
+    @Test
+    public void editedFileIsServedFreshWithNewEtag() throws Exception {
+        write(scratch, "first version");
+        TestServer.Client client = server.connect();
+        try {
+            TestServer.Response first = awaitBody(client, "/public/handler-test.txt", "first version");
+            assertEquals(first.header("etag"), client.get("/public/handler-test.txt").header("etag")); // from the cache now
+
+            write(scratch, "second version, longer");
+            TestServer.Response second = awaitBody(client, "/public/handler-test.txt", "second version, longer");
+            assertNotEquals(first.header("etag"), second.header("etag"));
+
+            // the old validator no longer matches, the new one does
+            assertEquals(200, client.get("/public/handler-test.txt", "If-None-Match: " + first.header("etag")).status);
+            assertEquals(304, client.get("/public/handler-test.txt", "If-None-Match: " + second.header("etag")).status);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void etagDescribesTheBytesServed() throws Exception {
+        write(scratch, "same size A");
+        TestServer.Client client = server.connect();
+        try {
+            TestServer.Response a = awaitBody(client, "/public/handler-test.txt", "same size A");
+            write(scratch, "same size B");
+            TestServer.Response b = awaitBody(client, "/public/handler-test.txt", "same size B");
+            assertNotEquals(a.header("etag"), b.header("etag"));
+            assertEquals(FileIndex.FileMetadata.etag(FileIndex.crc32(b.body), b.body.length), b.header("etag"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void notModifiedKeepsVary() throws Exception {
+        TestServer.Client client = server.connect();
+        try {
+            TestServer.Response ok = client.get("/public/layout.css");
+            assertEquals(200, ok.status);
+            TestServer.Response notModified = client.get("/public/layout.css", "If-None-Match: W/" + ok.header("etag"));
+            assertEquals(304, notModified.status);
+            assertEquals(ok.header("etag"), notModified.header("etag"));
+            assertEquals("accept-encoding", notModified.header("vary").toLowerCase());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void pipelinedRequestsGetOneResponseEachInOrder() throws Exception {
+        String[] uris = {"/public/test.html", "/public/pngfile.png", "/public/missing.html", "/public/layout.css",
+                "/public/test.html", "/public/image.jpg"};
+        StringBuilder requests = new StringBuilder();
+        for (String uri : uris) {
+            requests.append(TestServer.request(uri, "Accept-Encoding: identity"));
+        }
+        TestServer.Client client = server.connect();
+        try {
+            client.send(requests.toString());
+            for (String uri : uris) {
+                TestServer.Response res = client.read();
+                File file = new File(uri.substring(1));
+                if (file.exists()) {
+                    assertEquals(uri, 200, res.status);
+                    assertArrayEquals(uri, Files.readAllBytes(file.toPath()), res.body);
+                } else {
+                    assertEquals(uri, 404, res.status);
+                }
+            }
+            client.socket.setSoTimeout(200);
+            try {
+                fail("unexpected byte after the last response: " + client.socket.getInputStream().read());
+            } catch (SocketTimeoutException expected) {
+                // nothing more
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void binaryTypesAreNotCompressedNorTranscoded() throws Exception {
+        File pdf = new File(HttpRouterServer.PUBLIC_DIR, "handler-test.pdf");
+        byte[] content = "%PDF-1.4 caf\u00e9".getBytes(StandardCharsets.UTF_8);
+        Files.write(pdf.toPath(), content);
+        TestServer.Client client = server.connect();
+        try {
+            TestServer.Response res = client.get("/public/handler-test.pdf", "Accept-Encoding: gzip", "Accept-Charset: US-ASCII");
+            for (long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                 res.status == 404 && System.nanoTime() < deadline; ) { // not indexed yet
+                Thread.sleep(20);
+                res = client.get("/public/handler-test.pdf", "Accept-Encoding: gzip", "Accept-Charset: US-ASCII");
+            }
+            assertEquals(200, res.status);
+            assertEquals("application/pdf", res.header("content-type"));
+            assertNull(res.header("content-encoding"));
+            assertNull(res.header("vary"));
+            assertArrayEquals(content, res.body);
+        } finally {
+            client.close();
+            Files.deleteIfExists(pdf.toPath());
+        }
+    }
+
+    @Test
+    public void usAsciiOnlyGetsOriginalBytesOr406() throws Exception {
+        TestServer.Client client = server.connect();
+        try {
+            TestServer.Response ascii = client.get("/public/test.html", "Accept-Charset: US-ASCII");
+            assertEquals(200, ascii.status);
+            assertArrayEquals(Files.readAllBytes(new File("public/test.html").toPath()), ascii.body);
+
+            // index.html has non-ASCII bytes, there is no lossless US-ASCII representation
+            assertEquals(406, client.get("/public/index.html", "Accept-Charset: US-ASCII").status);
+            TestServer.Response utf8 = client.get("/public/index.html");
+            assertEquals(200, utf8.status);
+            assertArrayEquals(Files.readAllBytes(new File("public/index.html").toPath()), utf8.body);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void hitsAreServedWhileMissesWaitForDisk() throws Exception {
+        TestServer.Client hits = server.connect();
+        TestServer.Client misses = server.connect();
+        final CountDownLatch diskFree = new CountDownLatch(1);
+        try {
+            assertEquals(200, hits.get("/public/test.html").status); // cached now
+            write(scratch, "read while the disk is slow");
+            awaitIndexed(scratch);
+
+            blockFileIo(diskFree);
+
+            misses.send(TestServer.request("/public/handler-test.txt"));
+            for (int i = 0; i < 100; i++) {
+                long start = System.nanoTime();
+                assertEquals(200, hits.get("/public/test.html").status);
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("cache hit took " + millis + "ms behind a slow miss", millis < 1000);
+            }
+            assertEquals("the miss was answered without the disk", 0, misses.socket.getInputStream().available());
+
+            diskFree.countDown();
+            TestServer.Response miss = misses.read();
+            assertEquals(200, miss.status);
+            assertEquals("read while the disk is slow", miss.text());
+        } finally {
+            diskFree.countDown();
+            hits.close();
+            misses.close();
+        }
+    }
+
+    @Test
+    public void failedReadIsAnswered500() throws Exception {
+        TestServer.Client client = server.connect();
+        CountDownLatch diskFree = new CountDownLatch(1);
+        try {
+            write(scratch, "gone before it is read");
+            awaitIndexed(scratch);
+            blockFileIo(diskFree);
+            client.send(TestServer.request("/public/handler-test.txt"));
+            awaitQueuedLoads(1);
+
+            // the queued load reads the version it was started for, a directory by then
+            Files.delete(scratch.toPath());
+            assertTrue(scratch.mkdir());
+            diskFree.countDown();
+            TestServer.Response res = client.read();
+            assertEquals(500, res.status);
+            assertEquals("500 Internal Server Error", res.text());
+        } finally {
+            diskFree.countDown();
+            client.close();
+        }
+    }
+
+    @Test
+    public void mappedFileTruncatedInPlaceIsReadAgainAsACopy() throws Exception {
+        File bin = new File(HttpRouterServer.PUBLIC_DIR, "handler-test.bin");
+        String pathString = HttpRouterServer.PUBLIC_DIR + bin.getName();
+        byte[] content = new byte[(int) HttpRouterServer.MMAP_THRESHOLD_BYTES * 2];
+        Arrays.fill(content, (byte) 'm');
+        try {
+            Files.write(bin.toPath(), content);
+            awaitIndexed(bin);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            CachedFile cached = null;
+            while ((cached == null || !cached.isMapped()) && System.nanoTime() < deadline) {
+                TestServer.Client client = server.connect();
+                try {
+                    assertArrayEquals(content, client.get("/public/handler-test.bin").body);
+                } finally {
+                    client.close();
+                }
+                cached = server.handler.fileCache.get(pathString);
+            }
+            assertTrue("not cached as a mapping", cached != null && cached.isMapped());
+
+            write(bin, "truncated"); // in place, under the mapping
+            TestServer.Response res = null;
+            deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while ((res == null || !"truncated".equals(res.text())) && System.nanoTime() < deadline) {
+                TestServer.Client client = server.connect();
+                try {
+                    res = client.get("/public/handler-test.bin");
+                } catch (IOException e) { // the write of the stale mapping failed, the connection is closed
+                    res = null;
+                } finally {
+                    client.close();
+                }
+            }
+            assertEquals("truncated", res.text());
+            cached = server.handler.fileCache.get(pathString);
+            assertTrue("mapped again", cached == null || !cached.isMapped());
+            assertTrue(server.handler.fileIndex.get(pathString).writtenInPlace);
+        } finally {
+            Files.deleteIfExists(bin.toPath());
+        }
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        TestServer.Client[] clients = connect(COALESCED_CLIENTS);
+        CountDownLatch diskFree = new CountDownLatch(1);
+        try {
+            write(scratch, "read once for everyone");
+            awaitIndexed(scratch);
+            long loads = server.handler.metrics.getFileLoads();
+            long coalesced = server.handler.metrics.getCoalescedLoads();
+            blockFileIo(diskFree);
+
+            sendAndAwaitCoalesced(clients, coalesced);
+            diskFree.countDown();
+            for (TestServer.Client client : clients) {
+                TestServer.Response res = client.read();
+                assertEquals(200, res.status);
+                assertEquals("read once for everyone", res.text());
+            }
+            assertEquals(loads + 1, server.handler.metrics.getFileLoads());
+            assertEquals(coalesced + clients.length - 1, server.handler.metrics.getCoalescedLoads());
+        } finally {
+            diskFree.countDown();
+            close(clients);
+        }
+    }
+
+    @Test
+    public void failedSharedLoadAnswersEveryWaiter() throws Exception {
+        TestServer.Client[] clients = connect(COALESCED_CLIENTS);
+        CountDownLatch diskFree = new CountDownLatch(1);
+        try {
+            write(scratch, "gone before it is read");
+            awaitIndexed(scratch);
+            long coalesced = server.handler.metrics.getCoalescedLoads();
+            blockFileIo(diskFree);
+
+            sendAndAwaitCoalesced(clients, coalesced);
+            Files.delete(scratch.toPath());
+            assertTrue(scratch.mkdir());
+            diskFree.countDown();
+            for (TestServer.Client client : clients) {
+                assertEquals(500, client.read().status);
+            }
+        } finally {
+            diskFree.countDown();
+            close(clients);
+        }
+    }
+
+    @Test
+    public void rejectedLoadAnswersEveryWaiter503() throws Exception {
+        TestServer.Client[] clients = connect(COALESCED_CLIENTS);
+        CountDownLatch diskFree = new CountDownLatch(1);
+        try {
+            write(scratch, "no room to read it");
+            awaitIndexed(scratch);
+            blockFileIo(diskFree);
+            ThreadPoolExecutor fileIo = server.handler.fileIoExecutor;
+            while (fileIo.getQueue().remainingCapacity() > 0) {
+                fileIo.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+            }
+
+            for (TestServer.Client client : clients) {
+                client.send(TestServer.request("/public/handler-test.txt"));
+            }
+            for (TestServer.Client client : clients) {
+                assertEquals(503, client.read().status);
+            }
+            diskFree.countDown();
+            TestServer.Client later = server.connect();
+            try {
+                assertEquals("no room to read it", later.get("/public/handler-test.txt").text());
+            } finally {
+                later.close();
+            }
+        } finally {
+            diskFree.countDown();
+            close(clients);
+        }
+    }
+
+    /**
+     * Makes every file I/O thread wait for the latch, as on a stalled disk. Loads queue up behind them.
+     */
+    static void blockFileIo(final CountDownLatch diskFree) throws Exception {
+        ThreadPoolExecutor fileIo = server.handler.fileIoExecutor;
+        final CountDownLatch stuck = new CountDownLatch(fileIo.getMaximumPoolSize());
+        for (int i = 0; i < fileIo.getMaximumPoolSize(); i++) {
+            fileIo.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stuck.countDown();
+                    try {
+                        diskFree.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+        assertTrue(stuck.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Sends the same miss from every client, the first one starts the load and the others join it.
+     */
+    static void sendAndAwaitCoalesced(TestServer.Client[] clients, long coalescedBefore) throws Exception {
+        clients[0].send(TestServer.request("/public/handler-test.txt"));
+        awaitQueuedLoads(1);
+        for (int i = 1; i < clients.length; i++) {
+            clients[i].send(TestServer.request("/public/handler-test.txt"));
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.handler.metrics.getCoalescedLoads() < coalescedBefore + clients.length - 1
+                && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(coalescedBefore + clients.length - 1, server.handler.metrics.getCoalescedLoads());
+        assertEquals("joined the load instead of starting one", 1, server.handler.fileIoExecutor.getQueue().size());
+    }
+
+    static TestServer.Client[] connect(int n) throws Exception {
+        TestServer.Client[] clients = new TestServer.Client[n];
+        for (int i = 0; i < n; i++) {
+            clients[i] = server.connect();
+        }
+        return clients;
+    }
+
+    static void close(TestServer.Client[] clients) throws Exception {
+        for (TestServer.Client client : clients) {
+            client.close();
+        }
+    }
+
+    static void awaitQueuedLoads(int loads) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (server.handler.fileIoExecutor.getQueue().size() < loads && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(loads, server.handler.fileIoExecutor.getQueue().size());
+    }
+
+    static void awaitIndexed(File file) throws Exception {
+        String pathString = HttpRouterServer.PUBLIC_DIR + file.getName();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        FileIndex.FileMetadata metadata = server.handler.fileIndex.get(pathString);
+        while ((metadata == null || metadata.size != file.length()) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            metadata = server.handler.fileIndex.get(pathString);
+        }
+        assertEquals(file.length(), metadata.size);
+    }
+
+    static void write(File file, String content) throws Exception {
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Repeats the request until the watcher has picked up the edit.
+     */
+    static TestServer.Response awaitBody(TestServer.Client client, String uri, String body) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        TestServer.Response res = client.get(uri);
+        while (!(res.status == 200 && body.equals(res.text())) && System.nanoTime() < deadline) {
+            Thread.sleep(20);
+            res = client.get(uri);
+        }
+        assertEquals(200, res.status);
+        assertEquals(body, res.text());
+        return res;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class MappedFileBufTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mapsWithoutCopyAndUnmapsOnLastRelease() throws Exception {
+        File file = folder.newFile("mapped.bin");
+        Files.write(file.toPath(), "mapped content".getBytes(StandardCharsets.US_ASCII));
+
+        ByteBuf buf = MappedFileBuf.map(file.getPath());
+        assertTrue(buf.isDirect()); // written without a copy to a direct buffer
+        assertEquals(1, buf.nioBufferCount());
+        assertEquals("mapped content", buf.toString(CharsetUtil.US_ASCII));
+        assertTrue(isMapped(file));
+
+        ByteBuf response = buf.duplicate().retain();
+        buf.release();
+        assertTrue("unmapped under a response in flight", isMapped(file));
+        assertEquals("mapped content", response.toString(CharsetUtil.US_ASCII));
+        response.release();
+        assertFalse(isMapped(file));
+    }
+
+    @Test
+    public void truncatedMappingFailsTheCopyInsteadOfTheJvm() throws Exception {
+        File file = folder.newFile("truncated.bin");
+        Files.write(file.toPath(), new byte[3 * 65536]);
+        ByteBuf buf = MappedFileBuf.map(file.getPath());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(100); // in place, as a writer that truncates and rewrites does
+        }
+        try {
+            FileIndex.crc32(buf.nioBuffer());
+            fail("read past the end of a truncated file");
+        } catch (InternalError expected) {
+            // SIGBUS turned into an error of the copy
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static boolean isMapped(File file) throws Exception {
+        assumeTrue(new File("/proc/self/maps").exists());
+        String maps = new String(Files.readAllBytes(Paths.get("/proc/self/maps")), StandardCharsets.ISO_8859_1);
+        return maps.contains(file.getCanonicalPath());
+    }
+}
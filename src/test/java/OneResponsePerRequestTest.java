@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Every request is answered with exactly one response: one response head and one end of it
+ * (FullHttpResponse, head + LastHttpContent, or one PreparedResponse), whatever the request.
+ * Responses are recorded as the handler writes them, before Http1ServerCodec encodes them.
+ */
+public class OneResponsePerRequestTest {
+
+    private HttpRouterServerHandler handler;
+    private EmbeddedChannel channel;
+    private final List<String> written = new ArrayList<String>();
+
+    @Before
+    public void setUp() {
+        Router<String> router = new Router<String>()
+            .GET(HttpRouterServer.PUBLIC_DIR + ":id", "public")
+            .notFound("404 Not Found");
+        handler = new HttpRouterServerHandler(router);
+        channel = new EmbeddedChannel(new PreparedResponseEncoder(), new Http1ServerCodec(), new ChunkedWriteHandler(),
+                new Recorder(), handler);
+        assertTrue(handler.preload("public/test.html")); // answered in place, not on the file I/O pool
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+        handler.close();
+    }
+
+    @Test
+    public void methodOtherThanGet() {
+        assertEquals(Arrays.asList("405 full"),
+                exchange("POST /public/test.html HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello"));
+        assertEquals(Arrays.asList("405 full"),
+                exchange("DELETE /public/test.html HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+    }
+
+    @Test
+    public void headIsAnsweredOnceWithoutBody() {
+        assertEquals(Arrays.asList("405 full empty"), exchange("HEAD /public/test.html HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+        assertEquals(Arrays.asList("200 prepared"), exchange(TestServer.request("/public/test.html")));
+    }
+
+    @Test
+    public void queryString() {
+        assertEquals(Arrays.asList("400 full"), exchange(TestServer.request("/public/test.html?v=1")));
+    }
+
+    @Test
+    public void notModifiedThenOk() {
+        String etag = handler.fileIndex.get("public/test.html").etag();
+        assertEquals(Arrays.asList("304 full empty", "200 prepared"), exchange(
+                TestServer.request("/public/test.html", "If-None-Match: " + etag)
+                + TestServer.request("/public/test.html")));
+    }
+
+    @Test
+    public void pipelinedMixInOrder() {
+        String etag = handler.fileIndex.get("public/test.html").etag();
+        assertEquals(Arrays.asList("405 full", "400 full", "304 full empty", "200 prepared", "405 full empty",
+                        "404 full", "206 full"),
+                exchange("POST /public/test.html HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2\r\n\r\nhi"
+                        + TestServer.request("/public/test.html?v=1")
+                        + TestServer.request("/public/test.html", "If-None-Match: " + etag)
+                        + TestServer.request("/public/test.html")
+                        + "HEAD /public/test.html HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        + TestServer.request("/public/missing.html")
+                        + TestServer.request("/public/test.html", "Range: bytes=0-9")));
+    }
+
+    /**
+     * Writes the requests in one go and returns one entry per response: status and how it ended.
+     * Fails if a response has a second head, or content after its end.
+     */
+    private List<String> exchange(String requests) {
+        written.clear();
+        channel.writeInbound(Unpooled.copiedBuffer(requests, CharsetUtil.US_ASCII));
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+        List<String> responses = new ArrayList<String>();
+        String open = null; // head written, end not yet
+        for (String w : written) {
+            if (w.startsWith("head ")) {
+                assertEquals("second head before the end of " + open, null, open);
+                open = w.substring(5);
+            } else if (w.equals("content")) {
+                assertTrue("content outside of a response", open != null);
+            } else if (w.equals("last")) {
+                assertTrue("end outside of a response", open != null);
+                responses.add(open + " streamed");
+                open = null;
+            } else { // full or prepared response, head and end in one message
+                assertEquals("response inside " + open, null, open);
+                responses.add(w);
+            }
+        }
+        assertEquals("response not ended", null, open);
+        return responses;
+    }
+
+    private final class Recorder extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof PreparedResponse) {
+                written.add("200 prepared");
+            } else if (msg instanceof FullHttpResponse) {
+                FullHttpResponse res = (FullHttpResponse) msg;
+                written.add(res.status().code() + " full" + (res.content().isReadable() ? "" : " empty"));
+            } else if (msg instanceof HttpResponse) {
+                written.add("head " + ((HttpResponse) msg).status().code());
+            } else if (msg instanceof LastHttpContent) {
+                written.add("last");
+            } else {
+                written.add("content");
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+}
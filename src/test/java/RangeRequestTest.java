@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 206, 416 and If-Range through the server, for a cached file (slices of the cached buffer)
+ * and for a file above SENDFILE_THRESHOLD_BYTES (file regions written after the head).
+ */
+public class RangeRequestTest {
+
+    private static final File LARGE = new File(HttpRouterServer.PUBLIC_DIR, "range-test.bin");
+
+    private static TestServer server;
+    private static byte[] small;
+    private static byte[] large;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        small = Files.readAllBytes(new File("public/test.html").toPath());
+        large = new byte[(int) HttpRouterServer.SENDFILE_THRESHOLD_BYTES + 4096];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 251);
+        }
+        Files.write(LARGE.toPath(), large);
+        server = new TestServer(); // indexes the file at start
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        server.close();
+        Files.deleteIfExists(LARGE.toPath());
+    }
+
+    @Test
+    public void suffixAndOpenEndedRanges() throws Exception {
+        TestServer.Client client = server.connect();
+        try {
+            for (String uri : new String[] {"/public/test.html", "/public/range-test.bin"}) {
+                byte[] content = content(uri);
+                TestServer.Response suffix = client.get(uri, "Range: bytes=-10");
+                assertEquals(uri, 206, suffix.status);
+                assertEquals("bytes " + (content.length - 10) + '-' + (content.length - 1) + '/' + content.length,
+                        suffix.header("content-range"));
+                assertArrayEquals(Arrays.copyOfRange(content, content.length - 10, content.length), suffix.body);
+
+                TestServer.Response open = client.get(uri, "Range: bytes=100-");
+                assertEquals(206, open.status);
+                assertEquals("bytes 100-" + (content.length - 1) + '/' + content.length, open.header("content-range"));
+                assertArrayEquals(Arrays.copyOfRange(content, 100, content.length), open.body);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void overlappingRangesAreOnePart() throws Exception {
+        TestServer.Client client = server.connect();
+        try {
+            TestServer.Response res = client.get("/public/test.html", "Range: bytes=0-9,5-14");
+            assertEquals(206, res.status);
+            assertEquals("bytes 0-14/" + small.length, res.header("content-range"));
+            assertArrayEquals(Arrays.copyOfRange(small, 0, 15), res.body);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void unsatisfiableRangeIs416() throws Exception {
+        TestServer.Client client = server.connect();
+        try {
+            for (String uri : new String[] {"/public/test.html", "/public/range-test.bin"}) {
+                TestServer.Response res = client.get(uri, "Range: bytes=" + content(uri).length + "-");
+                assertEquals(uri, 416, res.status);
+                assertEquals("bytes */" + content(uri).length, res.header("content-range"));
+                assertEquals(0, res.body.length);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void staleIfRangeGetsTheWholeFile() throws Exception {
+        TestServer.Client client = server.connect();
+        try {
+            TestServer.Response current = client.get("/public/test.html");
+            assertEquals(200, current.status);
+
+            TestServer.Response staleEtag = client.get("/public/test.html", "Range: bytes=0-9", "If-Range: \"00000000-1\"");
+            assertEquals(200, staleEtag.status);
+            assertArrayEquals(small, staleEtag.body);
+            TestServer.Response staleDate = client.get("/public/test.html", "Range: bytes=0-9",
+                    "If-Range: Thu, 01 Jan 1970 00:00:00 GMT");
+            assertEquals(200, staleDate.status);
+            assertArrayEquals(small, staleDate.body);
+            TestServer.Response weak = client.get("/public/test.html", "Range: bytes=0-9", "If-Range: W/" + current.header("etag"));
+            assertEquals("a weak validator never matches", 200, weak.status);
+
+            assertEquals(206, client.get("/public/test.html", "Range: bytes=0-9", "If-Range: " + current.header("etag")).status);
+            assertEquals(206, client.get("/public/test.html", "Range: bytes=0-9",
+                    "If-Range: " + current.header("last-modified")).status);
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void multipartLengthMatchesTheBodyWritten() throws Exception {
+        TestServer.Client client = server.connect();
+        try {
+            for (String uri : new String[] {"/public/test.html", "/public/range-test.bin"}) {
+                byte[] content = content(uri);
+                // the next response is read right after Content-Length bytes, any byte more or less garbles it
+                client.send(TestServer.request(uri, "Range: bytes=0-9,20-29,-5") + TestServer.request("/public/test.html"));
+                TestServer.Response res = client.read();
+                assertEquals(uri, 206, res.status);
+                assertTrue(res.header("content-type").startsWith("multipart/byteranges; boundary="));
+                String boundary = res.header("content-type").substring("multipart/byteranges; boundary=".length());
+
+                String body = new String(res.body, StandardCharsets.ISO_8859_1);
+                String[] parts = body.split("\r\n--" + boundary);
+                assertEquals("3 parts, the closing delimiter and nothing before the first", 5, parts.length);
+                assertEquals("", parts[0]);
+                assertPart(parts[1], content, 0, 9);
+                assertPart(parts[2], content, 20, 29);
+                assertPart(parts[3], content, content.length - 5, content.length - 1);
+                assertEquals("--\r\n", parts[4]);
+
+                TestServer.Response next = client.read();
+                assertEquals(200, next.status);
+                assertArrayEquals(small, next.body);
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private static void assertPart(String part, byte[] content, int start, int end) {
+        int bodyStart = part.indexOf("\r\n\r\n") + 4;
+        assertTrue(part, part.substring(0, bodyStart).contains(
+                "Content-Range: bytes " + start + '-' + end + '/' + content.length + "\r\n"));
+        assertArrayEquals(Arrays.copyOfRange(content, start, end + 1),
+                part.substring(bodyStart).getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static byte[] content(String uri) {
+        return uri.endsWith(".bin") ? large : small;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.CharsetUtil;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RateLimiter on a clock stepped by hand: the burst, then rejection until the emission interval
+ * has passed, and the 429 the handler answers with.
+ */
+public class RateLimiterTest {
+
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100); // 10/s
+
+    private final ManualClock clock = new ManualClock();
+    private final InetAddress client = address(10, 0, 0, 1);
+
+    @Test
+    public void burstThenRejected() {
+        RateLimiter limiter = new RateLimiter(10, 3, 10, 3, 16, clock);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("request " + i, 0, limiter.acquireRequest(client));
+        }
+        assertEquals(INTERVAL, limiter.acquireRequest(client));
+        clock.now += INTERVAL / 2;
+        assertEquals(INTERVAL / 2, limiter.acquireRequest(client));
+    }
+
+    @Test
+    public void refillsOneRequestPerInterval() {
+        RateLimiter limiter = new RateLimiter(10, 3, 10, 3, 16, clock);
+        for (int i = 0; i < 3; i++) {
+            limiter.acquireRequest(client);
+        }
+        clock.now += INTERVAL;
+        assertEquals(0, limiter.acquireRequest(client));
+        assertTrue(limiter.acquireRequest(client) > 0);
+
+        clock.now += 3 * INTERVAL; // idle long enough for the whole burst, not more
+        for (int i = 0; i < 3; i++) {
+            assertEquals("request " + i, 0, limiter.acquireRequest(client));
+        }
+        assertTrue(limiter.acquireRequest(client) > 0);
+    }
+
+    @Test
+    public void budgetsAreSeparatePerAddressAndKind() {
+        RateLimiter limiter = new RateLimiter(10, 1, 1, 1, 16, clock);
+        assertEquals(0, limiter.acquireRequest(client));
+        assertTrue(limiter.acquireRequest(client) > 0);
+        assertEquals(0, limiter.acquireMiss(client));
+        assertEquals(TimeUnit.SECONDS.toNanos(1), limiter.acquireMiss(client));
+        assertEquals(0, limiter.acquireRequest(address(10, 0, 0, 2)));
+    }
+
+    @Test
+    public void handlerAnswers429WithRetryAfter() {
+        Router<String> router = new Router<String>()
+            .GET(HttpRouterServer.PUBLIC_DIR + ":id", "public")
+            .notFound("404 Not Found");
+        HttpRouterServerHandler handler = new HttpRouterServerHandler(router,
+                new RateLimiter(0.5, 2, 0.5, 2, 16, clock)); // one request per 2s
+        EmbeddedChannel channel = new EmbeddedChannel(new PreparedResponseEncoder(), new Http1ServerCodec(),
+                new ChunkedWriteHandler(), handler) {
+            @Override
+            protected SocketAddress remoteAddress0() {
+                return new InetSocketAddress(client, 40000);
+            }
+        };
+        try {
+            assertTrue(handler.preload("public/test.html"));
+            assertTrue(exchange(channel, "/public/test.html").startsWith("HTTP/1.1 200 "));
+            assertTrue(exchange(channel, "/public/test.html").startsWith("HTTP/1.1 200 "));
+            String rejected = exchange(channel, "/public/test.html");
+            assertTrue(rejected, rejected.startsWith("HTTP/1.1 429 "));
+            assertTrue(rejected, rejected.contains("\r\nretry-after: 2\r\n"));
+
+            clock.now += TimeUnit.SECONDS.toNanos(2);
+            assertTrue(exchange(channel, "/public/test.html").startsWith("HTTP/1.1 200 "));
+        } finally {
+            channel.finishAndReleaseAll();
+            handler.close();
+        }
+    }
+
+    private static String exchange(EmbeddedChannel channel, String uri) {
+        channel.writeInbound(channel.alloc().buffer().writeBytes(TestServer.request(uri).getBytes(CharsetUtil.US_ASCII)));
+        channel.runPendingTasks();
+        StringBuilder sb = new StringBuilder();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf) {
+                sb.append(((ByteBuf) msg).toString(CharsetUtil.ISO_8859_1));
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return sb.toString();
+    }
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (UnknownHostException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final class ManualClock implements RateLimiter.Clock {
+        long now = 1000000000L;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.router.Router;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Clients that do not read their responses: nothing is written to an unwritable channel,
+ * reading from it stops, and the memory held for it stays around the high write watermark.
+ */
+public class SlowClientTest {
+
+    private static final int REQUESTS = 100;
+
+    @Test
+    public void unwritableChannelIsNotFed() {
+        Router<String> router = new Router<String>()
+            .GET(HttpRouterServer.PUBLIC_DIR + ":id", "public")
+            .notFound("404 Not Found");
+        HttpRouterServerHandler handler = new HttpRouterServerHandler(router);
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new PreparedResponseEncoder(), new Http1ServerCodec(), new ChunkedWriteHandler(), handler);
+        try {
+            assertTrue(handler.preload("public/test.html"));
+            channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+            channel.runPendingTasks();
+            assertFalse(channel.isWritable());
+
+            StringBuilder pipelined = new StringBuilder();
+            for (int i = 0; i < 3; i++) {
+                pipelined.append(TestServer.request("/public/test.html"));
+            }
+            channel.writeInbound(Unpooled.copiedBuffer(pipelined, CharsetUtil.US_ASCII));
+            assertNull("response written to an unwritable channel", channel.readOutbound());
+            assertFalse("still reading from a client that does not take its responses", channel.config().isAutoRead());
+
+            channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+            channel.runPendingTasks();
+            for (int i = 0; i < 3; i++) {
+                ByteBuf response = channel.readOutbound();
+                assertNotNull("response " + i + " not written once writable", response);
+                assertTrue(response.toString(CharsetUtil.US_ASCII).startsWith("HTTP/1.1 200"));
+                response.release();
+            }
+            assertNull(channel.readOutbound());
+            assertTrue(channel.config().isAutoRead());
+        } finally {
+            channel.finishAndReleaseAll();
+            handler.close();
+        }
+    }
+
+    @Test
+    public void clientThatNeverReadsHoldsBoundedMemory() throws Exception {
+        byte[] png = Files.readAllBytes(Paths.get("public/pngfile.png"));
+        TestServer server = new TestServer();
+        Socket client = new Socket();
+        try {
+            client.setReceiveBufferSize(8192);
+            client.connect(server.serverAddress());
+            TestServer.Client http = new TestServer.Client(client);
+            assertEquals(200, http.get("/public/pngfile.png").status); // cached
+            Channel connection = server.accepted.poll(10, TimeUnit.SECONDS);
+
+            StringBuilder pipelined = new StringBuilder();
+            for (int i = 0; i < REQUESTS; i++) {
+                pipelined.append(TestServer.request("/public/pngfile.png"));
+            }
+            http.send(pipelined.toString()); // about 20MB of responses, none read for now
+
+            long bound = HttpRouterServer.WRITE_BUFFER_HIGH + png.length + 1024; // watermark plus one response
+            long maxPending = 0;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+            while (System.nanoTime() < deadline) {
+                maxPending = Math.max(maxPending, connection.unsafe().outboundBuffer().totalPendingWriteBytes());
+                Thread.sleep(10);
+            }
+            assertTrue(maxPending + " bytes pending for a client that does not read", maxPending <= bound);
+            assertFalse(connection.isWritable());
+            assertFalse(connection.config().isAutoRead());
+
+            for (int i = 0; i < REQUESTS; i++) { // nothing lost or reordered once it reads
+                TestServer.Response res = http.read();
+                assertEquals(200, res.status);
+                assertArrayEquals(png, res.body);
+            }
+        } finally {
+            client.close();
+            server.close();
+        }
+    }
+}
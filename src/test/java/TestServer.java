@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.router.Router;
+import io.netty.util.CharsetUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The server's pipeline (HttpRouterServerInitializer) on a loopback port, with a blocking
+ * HTTP/1.1 client. Real event loops, so loads on the file I/O pool hand back as in production.
+ * Tests run from the project root (surefire workingDirectory) and serve its public/.
+ */
+final class TestServer {
+
+    final HttpRouterServerInitializer initializer;
+    final HttpRouterServerHandler handler;
+    final BlockingQueue<Channel> accepted = new LinkedBlockingQueue<Channel>(); // server side of each connection
+    private final EventLoopGroup group = new NioEventLoopGroup(2);
+    private final Channel serverChannel;
+
+    TestServer() throws InterruptedException {
+        Router<String> router = new Router<String>()
+            .GET(HttpRouterServer.PUBLIC_DIR + ":id", "public")
+            .GET("/", "index")
+            .GET(HttpRouterServer.PUBLIC_DIR, "index")
+            .GET("metrics", "metrics")
+            .notFound("404 Not Found");
+        initializer = new HttpRouterServerInitializer(router);
+        handler = initializer.handler();
+        serverChannel = new ServerBootstrap()
+            .group(group)
+            .channel(NioServerSocketChannel.class)
+            .childOption(ChannelOption.TCP_NODELAY, Boolean.TRUE)
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                    new WriteBufferWaterMark(HttpRouterServer.WRITE_BUFFER_LOW, HttpRouterServer.WRITE_BUFFER_HIGH))
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    accepted.add(ch);
+                    ch.pipeline().addLast(initializer);
+                }
+            })
+            .bind("127.0.0.1", 0).sync().channel();
+    }
+
+    InetSocketAddress serverAddress() {
+        return (InetSocketAddress) serverChannel.localAddress();
+    }
+
+    Client connect() throws IOException {
+        return new Client(new Socket(serverAddress().getAddress(), serverAddress().getPort()));
+    }
+
+    void close() throws InterruptedException {
+        serverChannel.close().sync();
+        group.shutdownGracefully().sync();
+        handler.close();
+    }
+
+    static String request(String uri, String... headers) {
+        StringBuilder sb = new StringBuilder("GET ").append(uri).append(" HTTP/1.1\r\nHost: localhost\r\n");
+        for (String header : headers) {
+            sb.append(header).append("\r\n");
+        }
+        return sb.append("\r\n").toString();
+    }
+
+    static final class Client {
+        final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setSoTimeout(10000);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+
+        void send(String requests) throws IOException {
+            out.write(requests.getBytes(CharsetUtil.US_ASCII));
+            out.flush();
+        }
+
+        Response get(String uri, String... headers) throws IOException {
+            send(request(uri, headers));
+            return read();
+        }
+
+        /**
+         * Reads one response, body delimited by Content-Length (the server never chunks HTTP/1.1 files).
+         */
+        Response read() throws IOException {
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            int matched = 0;
+            while (matched < 4) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new IOException("connection closed, response head so far:\n" + head);
+                }
+                head.write(b);
+                matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : b == '\r' ? 1 : 0;
+            }
+            String[] lines = head.toString("ISO-8859-1").split("\r\n");
+            Response res = new Response(Integer.parseInt(lines[0].split(" ")[1]));
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                res.headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+            String length = res.header("content-length");
+            res.body = new byte[length == null ? 0 : Integer.parseInt(length)];
+            for (int n = 0; n < res.body.length; ) {
+                int read = in.read(res.body, n, res.body.length - n);
+                if (read < 0) {
+                    throw new IOException("connection closed after " + n + " of " + res.body.length + " body bytes");
+                }
+                n += read;
+            }
+            return res;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    static final class Response {
+        final int status;
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+        byte[] body;
+
+        Response(int status) {
+            this.status = status;
+        }
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        String text() {
+            return new String(body, CharsetUtil.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015 The Netty Project
+ *
+ * The Netty Project licenses this file to you under the Apache License,
+ * version 2.0 (the "License"); you may not use this file except in compliance
+ * with the License. You may obtain a copy of the License at:
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package nettyFileServer;
+
+import io.netty.channel.FileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * FileServerHandler without SSL in an EmbeddedChannel, which queues what is written without
+ * sending it: the files of a batch must not be open before their region is transferred.
+ */
+public class FileServerHandlerTest {
+
+    private static final int FILES = 200;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Path root;
+    private EmbeddedChannel channel;
+
+    @Before
+    public void setUp() throws IOException {
+        root = folder.newFolder("root").toPath().toRealPath();
+        for (int i = 0; i < FILES; i++) {
+            Files.write(root.resolve("file" + i + ".txt"), ("content of file " + i).getBytes(StandardCharsets.UTF_8));
+        }
+        channel = new EmbeddedChannel(new FileServerHandler(root));
+        ReferenceCountUtil.release(channel.readOutbound()); // HELO
+    }
+
+    @After
+    public void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void batchOpensFilesOnlyWhenTheyAreSent() throws IOException {
+        StringBuilder command = new StringBuilder("GET");
+        for (int i = 0; i < FILES; i++) {
+            command.append(" file").append(i).append(".txt");
+        }
+        int openBefore = openFiles();
+        channel.writeInbound(command.toString());
+        channel.flush();
+        List<Object> written = drain();
+        assertTrue("descriptors held by queued frames: " + (openFiles() - openBefore), openFiles() - openBefore < 10);
+
+        int frame = 0;
+        for (int i = 0; i < written.size(); i++) {
+            if (written.get(i) instanceof FileRegion) {
+                FileRegion region = (FileRegion) written.get(i);
+                assertEquals("OK: " + region.count() + " 0 " + region.count() + " file" + frame + ".txt\n", written.get(i - 1));
+                assertEquals("content of file " + frame, transfer(region));
+                region.release();
+                frame++;
+            }
+        }
+        assertEquals(FILES, frame);
+        assertTrue(openFiles() - openBefore < 10);
+    }
+
+    @Test
+    public void linkSwappedInAfterTheCheckIsNotFollowed() throws IOException {
+        File outside = folder.newFile("secret.txt");
+        Files.write(outside.toPath(), "content of file 0".getBytes(StandardCharsets.UTF_8)); // same length
+        channel.writeInbound("GET file0.txt");
+        channel.flush();
+        List<Object> written = drain();
+        assertEquals("OK: 17 0 17 file0.txt\n", written.get(0));
+
+        Path file = root.resolve("file0.txt");
+        Files.delete(file);
+        Files.createSymbolicLink(file, outside.toPath());
+        FileRegion region = (FileRegion) written.get(1);
+        try {
+            transfer(region);
+            fail("followed the link to " + outside);
+        } catch (IOException expected) {
+            // ELOOP from the open without following links
+        } finally {
+            region.release();
+        }
+    }
+
+    private List<Object> drain() {
+        List<Object> written = new ArrayList<Object>();
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            written.add(msg);
+        }
+        return written;
+    }
+
+    private static String transfer(FileRegion region) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (region.transferred() < region.count()) {
+            region.transferTo(Channels.newChannel(out), region.transferred());
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int openFiles() {
+        String[] fds = new File("/proc/self/fd").list();
+        return fds == null ? 0 : fds.length;
+    }
+}